@@ -61,8 +61,11 @@ import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import deepimagej.Constants;
@@ -70,19 +73,27 @@ import deepimagej.DeepImageJ;
 import deepimagej.RunnerTf;
 import deepimagej.RunnerProgress;
 import deepimagej.RunnerPt;
+import deepimagej.TileAutotuner;
 import deepimagej.DeepLearningModel;
 import deepimagej.components.BorderPanel;
 import deepimagej.exceptions.MacrosError;
 import deepimagej.processing.HeadlessProcessing;
 import deepimagej.tools.ArrayOperations;
+import deepimagej.tools.DigestCache;
+import deepimagej.tools.DijRunnerPipeline;
 import deepimagej.tools.DijRunnerPostprocessing;
 import deepimagej.tools.DijRunnerPreprocessing;
 import deepimagej.tools.DijTensor;
+import deepimagej.tools.EmptyTileFilter;
 import deepimagej.tools.Index;
 import deepimagej.tools.Log;
+import deepimagej.tools.ModelCache;
 import deepimagej.tools.ModelLoader;
 import deepimagej.tools.StartTensorflowService;
 import deepimagej.tools.SystemUsage;
+import deepimagej.tools.TilePlanner;
+import deepimagej.tools.TileReduction;
+import deepimagej.tools.TileStitcher;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.Macro;
@@ -90,6 +101,7 @@ import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
 
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -105,12 +117,13 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 	private TextField[]	    			texts;
 	private Label[]						labels;
 	static private String				path		= IJ.getDirectory("imagej") + File.separator + "models" + File.separator;
-	private HashMap<String, DeepImageJ>	dps;
+	// Models found, they are added while the dialog is already shown
+	private Map<String, DeepImageJ>		dps;
 	private String[]					processingFile = new String[2];
 	private Log							log			= new Log();
 	private int[]						patch;
 	private DeepImageJ					dp;
-	private HashMap<String, String>		fullnames	= new HashMap<String, String>();
+	private Map<String, String>			fullnames	= new ConcurrentHashMap<String, String>();
 	private String 						loadInfo 	= ""; 
 	private String						cudaVersion = "noCUDA";
 
@@ -118,12 +131,12 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 	private boolean 					loadedEngine= false;
 	// Array that contains the index of all the models whose yaml is 
 	// incorrect so it cannot be loaded
-	private ArrayList<Integer>			ignoreModelsIndexList;
+	private List<Integer>				ignoreModelsIndexList;
 	// Array that contains the index of all the models whose yaml Sha256 
 	// does not coincide with the sha256
-	private ArrayList<Integer>			incorrectSha256IndexList;
+	private List<Integer>				incorrectSha256IndexList;
 	// Array that contains the index of all the models whose yaml is missing 
-	private ArrayList<Integer>			missingYamlList;
+	private List<Integer>				missingYamlList;
 	// Array containing all the models loaded by the plugin
 	private String[] 					items;
 	// Check if the plugin is being run from a macro or not
@@ -139,6 +152,39 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 	// Number of open images, used to check whether an image
 	// has been open or not for the testing
 	private int nOpenImages = 0;
+	// Number of tiles processed at the same time. Can only be
+	// changed with the optional Macro argument 'tile_concurrency'
+	private int tileConcurrency = 1;
+	// Number of tiles run in the same batch, 0 for automatic. Can only be
+	// changed with the optional Macro argument 'tile_batch'
+	private int tileBatch = 1;
+	// Blending of the output tiles. Can only be changed with the
+	// optional Macro argument 'tile_blending'
+	private String tileBlending = TileStitcher.NONE;
+	// Folder whose images are processed in batch, given with the
+	// optional Macro argument 'input_dir'
+	private String inputDir = null;
+	// Folder where the outputs of the images of 'input_dir' are saved,
+	// given with the optional Macro argument 'output_dir'
+	private String outputDir = null;
+	// Folder where the output images are written to disk tile by tile, given
+	// with the optional Macro argument 'output_chunks'
+	private String outputChunks = null;
+	// Statistic and threshold used to skip the empty tiles, and value of their
+	// outputs. Given by the optional Macro arguments 'skip_statistic', 'skip_empty'
+	// and 'skip_fill'
+	private String skipStatistic = null;
+	private double skipThreshold = 0;
+	private float skipFill = 0;
+	// Bit depth and range of values of the outputs. Given by the
+	// optional Macro arguments 'output_type' and 'output_range'
+	private int outputBitDepth = 32;
+	private double[] outputRange = null;
+	// Reduction of the output channels and its threshold, given with the optional
+	// Macro arguments 'output_reduction' and 'reduction_threshold'. Null to use
+	// the ones of the rdf.yaml
+	private String outputReduction = null;
+	private Double reductionThreshold = null;
 	
 	
 	static public void main(String args[]) {
@@ -166,6 +212,21 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 
 		ImagePlus imp = null;
 		
+		// When a folder of images is given, no image needs to be open
+		inputDir = null;
+		outputDir = null;
+		outputChunks = null;
+		skipStatistic = null;
+		skipThreshold = 0;
+		skipFill = 0;
+		outputBitDepth = 32;
+		outputRange = null;
+		outputReduction = null;
+		reductionThreshold = null;
+		DigestCache.setForceRehash(false);
+		if (isMacro || headless)
+			inputDir = HeadlessProcessing.retrieveOptionalArgument(Macro.getOptions(), "input_dir");
+		
 		// Check whether the plugin is being run with a macro or not to find
 		// if there is an image open or not
 		if (!isMacro && WindowManager.getCurrentImage() != null) {
@@ -205,11 +266,15 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 			batch = true;
 			// Set the image that will be used by the plugin
 			imp = WindowManager.getTempCurrentImage();
+		} else if (isMacro && inputDir != null) {
+			batch = true;
 		} else if (isMacro) {
 			// If there is no image open in Macro mode, stop running the plugin
 			// because test mode is not available
 			IJ.error("There should be an image open.");
 			return;
+		} else if (headless && inputDir != null) {
+			batch = true;
 		} else if (headless) {
 			// If there is no image open in headless mode, stop running the plugin
 			// because test mode is not available
@@ -226,6 +291,113 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 		if (isMacro || headless) {
 			// Macro argument
 			String macroArg = Macro.getOptions();
+			// Optional arguments, they are removed from the Macro argument
+			// before parsing the rest of variables
+			String concurrencyArg = HeadlessProcessing.retrieveOptionalArgument(macroArg, "tile_concurrency");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "tile_concurrency");
+			tileConcurrency = parseTileConcurrency(concurrencyArg);
+			if (tileConcurrency < 1) {
+				IJ.error("Invalid Macro call: 'tile_concurrency' should be a positive integer or 'auto'.");
+				return;
+			}
+			String batchArg = HeadlessProcessing.retrieveOptionalArgument(macroArg, "tile_batch");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "tile_batch");
+			tileBatch = parseTileBatch(batchArg);
+			if (tileBatch < 0) {
+				IJ.error("Invalid Macro call: 'tile_batch' should be a positive integer or 'auto'.");
+				return;
+			}
+			String blendingArg = HeadlessProcessing.retrieveOptionalArgument(macroArg, "tile_blending");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "tile_blending");
+			tileBlending = blendingArg == null ? TileStitcher.NONE : blendingArg.toLowerCase();
+			if (!TileStitcher.isValidBlending(tileBlending)) {
+				IJ.error("Invalid Macro call: 'tile_blending' should be 'none', 'linear' or 'cosine'.");
+				return;
+			}
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "input_dir");
+			outputDir = HeadlessProcessing.retrieveOptionalArgument(macroArg, "output_dir");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "output_dir");
+			if (inputDir != null && outputDir == null) {
+				IJ.error("Invalid Macro call: 'output_dir' is required to process the images of 'input_dir'.");
+				return;
+			}
+			outputChunks = HeadlessProcessing.retrieveOptionalArgument(macroArg, "output_chunks");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "output_chunks");
+			if (outputChunks != null && !tileBlending.equals(TileStitcher.NONE)) {
+				IJ.log("The tiles cannot be blended when they are written to 'output_chunks'. They will not be blended.");
+				tileBlending = TileStitcher.NONE;
+			}
+			String skipArg = HeadlessProcessing.retrieveOptionalArgument(macroArg, "skip_empty");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "skip_empty");
+			String statisticArg = HeadlessProcessing.retrieveOptionalArgument(macroArg, "skip_statistic");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "skip_statistic");
+			String fillArg = HeadlessProcessing.retrieveOptionalArgument(macroArg, "skip_fill");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "skip_fill");
+			if (skipArg != null) {
+				skipStatistic = statisticArg == null ? EmptyTileFilter.STD : statisticArg.toLowerCase();
+				if (!EmptyTileFilter.isValidStatistic(skipStatistic)) {
+					IJ.error("Invalid Macro call: 'skip_statistic' should be 'std' or 'max'.");
+					return;
+				}
+				try {
+					skipThreshold = Double.parseDouble(skipArg.trim());
+					skipFill = fillArg == null ? 0 : Float.parseFloat(fillArg.trim());
+				} catch (NumberFormatException ex) {
+					IJ.error("Invalid Macro call: 'skip_empty' and 'skip_fill' should be numbers.");
+					return;
+				}
+			}
+			String typeArg = HeadlessProcessing.retrieveOptionalArgument(macroArg, "output_type");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "output_type");
+			outputBitDepth = parseOutputType(typeArg);
+			if (outputBitDepth < 0) {
+				IJ.error("Invalid Macro call: 'output_type' should be '8-bit', '16-bit' or '32-bit'.");
+				return;
+			}
+			String rangeArg = HeadlessProcessing.retrieveOptionalArgument(macroArg, "output_range");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "output_range");
+			outputRange = parseOutputRange(rangeArg);
+			if (rangeArg != null && outputRange == null) {
+				IJ.error("Invalid Macro call: 'output_range' should be two numbers, the minimum and the maximum.");
+				return;
+			}
+			if (outputBitDepth != 32 && !tileBlending.equals(TileStitcher.NONE)) {
+				IJ.log("The tiles cannot be blended in 8-bit or 16-bit outputs. They will not be blended.");
+				tileBlending = TileStitcher.NONE;
+			}
+			if (outputBitDepth != 32 && outputChunks != null)
+				IJ.log("The outputs written to 'output_chunks' are always 32-bit.");
+			String reductionArg = HeadlessProcessing.retrieveOptionalArgument(macroArg, "output_reduction");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "output_reduction");
+			outputReduction = reductionArg == null ? null : reductionArg.trim().toLowerCase();
+			if (outputReduction != null && !TileReduction.isValidReduction(outputReduction)) {
+				IJ.error("Invalid Macro call: 'output_reduction' should be 'none', 'argmax', 'softmax_argmax' or 'threshold'.");
+				return;
+			}
+			String thresholdArg = HeadlessProcessing.retrieveOptionalArgument(macroArg, "reduction_threshold");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "reduction_threshold");
+			try {
+				reductionThreshold = thresholdArg == null ? null : Double.parseDouble(thresholdArg.trim());
+			} catch (NumberFormatException ex) {
+				IJ.error("Invalid Macro call: 'reduction_threshold' should be a number.");
+				return;
+			}
+			String cacheArg = HeadlessProcessing.retrieveOptionalArgument(macroArg, "model_cache");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "model_cache");
+			long cacheBudget = parseModelCache(cacheArg);
+			if (cacheBudget < 0) {
+				IJ.error("Invalid Macro call: 'model_cache' should be the size in MB of the models kept in memory.");
+				return;
+			}
+			ModelCache.setBudget(cacheBudget);
+			// Calculate again the checksums of the weights instead of using the saved ones
+			String rehashArg = HeadlessProcessing.retrieveOptionalArgument(macroArg, "rehash");
+			macroArg = HeadlessProcessing.removeOptionalArgument(macroArg, "rehash");
+			if (rehashArg != null && !rehashArg.equalsIgnoreCase("true") && !rehashArg.equalsIgnoreCase("false")) {
+				IJ.error("Invalid Macro call: 'rehash' should be true or false.");
+				return;
+			}
+			DigestCache.setForceRehash(rehashArg != null && rehashArg.equalsIgnoreCase("true"));
 			// Names of the variables needed to run DIJ
 			// Especially Pytorch, add the possibility of including
 			// the path to the model directory. See DeepImageJ wiki for more
@@ -427,7 +599,10 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 				String dirname = args[0]; String format = args[1]; processingFile[0] = args[2];
 				processingFile[1] = args[3]; String patchString = args[5]; String debugMode = args[6];
 								
-				dp = dps.get(dirname);
+				dp = dirname == null ? null : dps.get(dirname);
+				// Read the information of the model that was not needed to list it
+				if (dp != null)
+					dp.params.loadDetails();
 				
 				// If the plugin is running in test mode, get the test image
 				// that has just been displayed
@@ -497,6 +672,40 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 					dp.params.attachments = dp.params.tfAttachments;
 				}
 				
+				// With 'tile=auto' the tile size is chosen for the image and the memory available.
+				// With 'tile=autotune' the tile size saved in the profile of the model for the
+				// same planned tile is used, and if there is none, the fastest one is measured
+				// once the model is loaded
+				String tileMode = patchString.trim().toLowerCase();
+				TilePlanner.Plan tunePlan = null;
+				String profileKey = null;
+				if ((tileMode.equals("auto") || tileMode.equals("autotune")) && dp.params.allowPatching && !dp.params.pyramidalNetwork) {
+					TilePlanner.Plan plan = planTiles(dp, imp);
+					if (plan == null) {
+						IJ.error("The tile size cannot be chosen automatically without an input image.\n"
+								+ "Please, introduce the tile size.");
+						return;
+					}
+					String tuned = null;
+					if (tileMode.equals("autotune")) {
+						profileKey = TileAutotuner.getProfileKey(dp, loadInfo.contains("GPU"), plan);
+						tuned = TileAutotuner.readProfile(dp, profileKey);
+					}
+					if (tuned != null) {
+						patchString = tuned;
+						if (log.getLevel() >= 1)
+							log.print("tile size from the profile of the model: " + tuned);
+					} else {
+						patchString = plan.getPatchString();
+						if (!plan.fitsBudget())
+							IJ.log("The smallest tile allowed by the model might not fit in memory: " + plan);
+						else if (log.getLevel() >= 1)
+							log.print(plan.toString());
+						if (tileMode.equals("autotune"))
+							tunePlan = plan;
+					}
+				}
+				
 				if (!headless && !isMacro) {
 					info.setText("");
 					info.setCaretPosition(0);
@@ -597,6 +806,30 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 					}
 				}
 				dp.params.inputList.get(0).recommended_patch = patch;
+				dp.params.tileConcurrency = tileConcurrency;
+				dp.params.tileBatch = tileBatch;
+				dp.params.tileBlending = tileBlending;
+				dp.params.outputChunks = outputChunks;
+				dp.params.skipStatistic = skipStatistic;
+				dp.params.skipThreshold = skipThreshold;
+				dp.params.skipFill = skipFill;
+				dp.params.outputBitDepth = outputBitDepth;
+				dp.params.outputRange = outputRange;
+				if (outputReduction != null)
+					dp.params.outputReduction = outputReduction;
+				if (reductionThreshold != null)
+					dp.params.reductionThreshold = reductionThreshold;
+				if (dp.params.outputReduction != null && !TileReduction.isValidReduction(dp.params.outputReduction)) {
+					IJ.error("The 'output_reduction' of the rdf.yaml should be 'none', 'argmax', 'softmax_argmax' or 'threshold'.");
+					closeAndReopenPlugin(imp);
+					return;
+				}
+				// Blending the tiles would average class labels or masks in the overlaps
+				if (dp.params.outputReduction != null && !dp.params.outputReduction.equals(TileReduction.NONE)
+						&& !dp.params.tileBlending.equals(TileStitcher.NONE)) {
+					IJ.log("The tiles cannot be blended when their outputs are reduced with '" + dp.params.outputReduction + "'. They will not be blended.");
+					dp.params.tileBlending = TileStitcher.NONE;
+				}
 
 				ExecutorService service = Executors.newFixedThreadPool(1);
 				RunnerProgress rp = null;
@@ -613,7 +846,9 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 				}
 				
 				boolean iscuda = DeepLearningModel.TensorflowCUDACompatibility(loadInfo, cudaVersion).equals("");
-				ModelLoader loadModel = new ModelLoader(dp, rp, loadInfo.contains("GPU"), iscuda, log.getLevel() >= 1, SystemUsage.checkFiji());
+				// In macro or headless mode, the model is kept loaded for the next calls to the plugin
+				boolean cache = (isMacro || headless) && ModelCache.getBudget() > 0;
+				ModelLoader loadModel = new ModelLoader(dp, rp, loadInfo.contains("GPU"), iscuda, log.getLevel() >= 1, SystemUsage.checkFiji(), cache);
 
 				Future<Boolean> f1 = service.submit(loadModel);
 				boolean output = false;
@@ -650,11 +885,120 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 				
 				if (rp != null)
 					rp.setService(null);
+				
+				if (tunePlan != null) {
+					String tuned = null;
+					try {
+						tuned = service.submit(new TileAutotuner(dp, tunePlan, log)).get();
+					} catch (InterruptedException | ExecutionException e) {
+						e.printStackTrace();
+					}
+					if (tuned != null) {
+						DijTensor inp = dp.params.inputList.get(0);
+						inp.recommended_patch = ArrayOperations.getPatchSize(DijTensor.getWorkingDims(inp.form), inp.form, tuned, false);
+						TileAutotuner.writeProfile(dp, profileKey, tuned);
+					}
+				}
 
-				calculateImage(imp, rp, service);
+				if (inputDir != null)
+					calculateFolder(rp, service);
+				else
+					calculateImage(imp, rp, service);
 				service.shutdown();
 	}
 	
+	/**
+	 * Parse the optional Macro argument 'tile_concurrency'. The key 'auto'
+	 * uses one tile per available processor
+	 * @param concurrencyArg: value given in the Macro call, null if it was not given
+	 * @return number of tiles processed at the same time, -1 if the value is not valid
+	 */
+	public static int parseTileConcurrency(String concurrencyArg) {
+		if (concurrencyArg == null)
+			return 1;
+		if (concurrencyArg.toLowerCase().equals("auto"))
+			return Runtime.getRuntime().availableProcessors();
+		try {
+			return Integer.parseInt(concurrencyArg);
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Parse the optional Macro argument 'tile_batch'. The key 'auto' lets
+	 * the runner choose the batch size depending on the free memory
+	 * @param batchArg: value given in the Macro call, null if it was not given
+	 * @return number of tiles per batch, 0 for 'auto' and -1 if the value is not valid
+	 */
+	public static int parseTileBatch(String batchArg) {
+		if (batchArg == null)
+			return 1;
+		if (batchArg.toLowerCase().equals("auto"))
+			return 0;
+		try {
+			int batch = Integer.parseInt(batchArg);
+			return batch > 0 ? batch : -1;
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Parse the optional Macro argument 'model_cache'. The value is the size in
+	 * MB of the models kept loaded between calls to the plugin, 0 disables the cache
+	 * @param cacheArg: value given in the Macro call, null if it was not given
+	 * @return budget of the cache in bytes, -1 if the value is not valid
+	 */
+	public static long parseModelCache(String cacheArg) {
+		if (cacheArg == null)
+			return ModelCache.DEFAULT_BUDGET;
+		try {
+			long mb = Long.parseLong(cacheArg);
+			return mb >= 0 ? mb * 1024 * 1024 : -1;
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Parse the optional Macro argument 'output_type'
+	 * @param typeArg: '8-bit', '16-bit' or '32-bit', null if it was not given
+	 * @return bit depth of the outputs, -1 if the value is not valid
+	 */
+	public static int parseOutputType(String typeArg) {
+		if (typeArg == null)
+			return 32;
+		String type = typeArg.trim().toLowerCase();
+		if (type.equals("8-bit"))
+			return 8;
+		else if (type.equals("16-bit"))
+			return 16;
+		else if (type.equals("32-bit"))
+			return 32;
+		return -1;
+	}
+	
+	/**
+	 * Parse the optional Macro argument 'output_range', two numbers separated
+	 * by a comma or a space
+	 * @param rangeArg: value given in the Macro call, null if it was not given
+	 * @return the minimum and maximum values, null if the value is not valid
+	 */
+	public static double[] parseOutputRange(String rangeArg) {
+		if (rangeArg == null)
+			return null;
+		String[] values = rangeArg.trim().split("[,\\s]+");
+		if (values.length != 2)
+			return null;
+		try {
+			double[] range = new double[] {Double.parseDouble(values[0]), Double.parseDouble(values[1])};
+			return range[1] > range[0] ? range : null;
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+	
 	/**
 	 * If the plugin has had any errors during the execution of the model
 	 * reset the plugin for another execution
@@ -688,7 +1032,10 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 			int ind = choices[0].getSelectedIndex();
 			String fullname = Integer.toString(ind);
 			String dirname = fullnames.get(fullname);
-			DeepImageJ dp = dps.get(dirname);
+			DeepImageJ dp = dirname == null ? null : dps.get(dirname);
+			// Read the information of the model that was not needed to list it
+			if (dp != null)
+				dp.params.loadDetails();
 			// check that the dp of the selected model 
 			// is valid
 			boolean goodDp = isGoodDp(dp, ind);
@@ -721,6 +1068,12 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 			// Get the axes given by the yaml without batch
 			String[] dim = DijTensor.getWorkingDims(tensorForm);
 			String optimalPatch = ArrayOperations.optimalPatch(haloVals, dim, step, min, testSize, dp.params.allowPatching);
+			// If there is an image, choose the tile size that fits in the memory available
+			if (dp.params.allowPatching && !dp.params.pyramidalNetwork) {
+				TilePlanner.Plan plan = planTiles(dp, WindowManager.getCurrentImage());
+				if (plan != null)
+					optimalPatch = plan.getPatchString();
+			}
 			// Update the info shown in the GUI
 			info.setText("");
 			info.setCaretPosition(0);
@@ -946,6 +1299,45 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 		}
 	}
 
+	/*
+	 * Choose the tile size for an image with the memory available. Returns null
+	 * if there is no image or the halo of the model is not valid
+	 */
+	private TilePlanner.Plan planTiles(DeepImageJ dp, ImagePlus imp) {
+		if (imp == null)
+			return null;
+		// TODO generalise for several inputs
+		DijTensor inp = dp.params.inputList.get(0);
+		float[] haloSize = ArrayOperations.findTotalPadding(inp, dp.params.outputList, dp.params.pyramidalNetwork);
+		if (haloSize == null)
+			return null;
+		float[] haloVals = DijTensor.getWorkingDimValues(inp.form, haloSize);
+		return TilePlanner.plan(imp, inp, dp.params.outputList, haloVals, TilePlanner.getMemoryBudget());
+	}
+
+	/*
+	 * Run the model on every image of the folder 'inputDir' and save the outputs
+	 * in 'outputDir'. Pre-processing, inference and post-processing of consecutive
+	 * images are overlapped
+	 */
+	public void calculateFolder(RunnerProgress rp, ExecutorService service) {
+		if (rp != null)
+			rp.setInfoTag("applyModel");
+		DijRunnerPipeline pipeline = new DijRunnerPipeline(dp, rp, log, inputDir, outputDir);
+		try {
+			service.submit(pipeline).get();
+		} catch (InterruptedException | ExecutionException ex) {
+			IJ.error("Error during the aplication of the model.");
+			ex.printStackTrace();
+		}
+		service.shutdown();
+		if (rp != null) {
+			rp.allowStopping(true);
+			rp.stop();
+			rp.dispose();
+		}
+	}
+
 	public void calculateImage(ImagePlus inp, RunnerProgress rp, ExecutorService service) {
 		
 		int runStage = 0;
@@ -1080,7 +1472,10 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 		// Close the IJ2 services to free all the resources used
 		if (SystemUsage.checkFiji())
 			StartTensorflowService.closeTfService();
-		if (dp != null && dp.params.framework.equals("tensorflow") && dp.getTfModel() != null) {
+		// Models kept in the cache are closed when they are evicted
+		if (dp != null && ModelCache.contains(dp)) {
+			System.out.println("[DEBUG] Keep model '" + dp.getName() + "' loaded for the next executions");
+		} else if (dp != null && dp.params.framework.equals("tensorflow") && dp.getTfModel() != null) {
 			dp.getTfModel().session().close();
 			dp.getTfModel().close();
 		} else if (dp != null && dp.params.framework.equals("pytorch") && dp.getTorchModel() != null) {
@@ -1112,16 +1507,22 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 		}
 		// Array that contains the index of all the models whose yaml is 
 		// incorrect so it cannot be loaded
-		ignoreModelsIndexList = new ArrayList<Integer>();
-		incorrectSha256IndexList = new ArrayList<Integer>();
-		missingYamlList = new ArrayList<Integer>();
-		dps = DeepImageJ.list(path, false, info, modelDir);
-		int k = 1;
-		items = new String[dps.size() + 1];
-		items[0] = "<Select a model from this list>";
-		for (String dirname : dps.keySet()) {
-			DeepImageJ dp = dps.get(dirname);
-			if (dp != null) {
+		// They are read from the dialog while the models are being listed
+		ignoreModelsIndexList = Collections.synchronizedList(new ArrayList<Integer>());
+		incorrectSha256IndexList = Collections.synchronizedList(new ArrayList<Integer>());
+		missingYamlList = Collections.synchronizedList(new ArrayList<Integer>());
+		dps = new ConcurrentHashMap<String, DeepImageJ>();
+		final List<String> itemList = new ArrayList<String>();
+		itemList.add("<Select a model from this list>");
+		if (!headless && !isMacro) {
+			choices[0].removeAll();
+			choices[0].addItem(itemList.get(0));
+		}
+		// Every model is added to the list of the dialog as soon as it is found
+		DeepImageJ.list(path, false, info, modelDir, new DeepImageJ.ModelListener() {
+			@Override
+			public void modelFound(DeepImageJ dp) {
+				int k = itemList.size();
 				String fullname = dp.getName();
 				if (!dp.params.completeConfig) {
 					fullname += " (unavailable)";
@@ -1133,16 +1534,17 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 					fullname += " (missing yaml)";
 					missingYamlList.add(k);
 				}
-				items[k++] = fullname;
-				int index = k - 1;
-				fullnames.put(Integer.toString(index), dirname);
+				itemList.add(fullname);
+				// The model has to be available before it can be selected
+				dps.put(dp.dirname, dp);
+				fullnames.put(Integer.toString(k), dp.dirname);
+				if (!headless && !isMacro)
+					choices[0].addItem(fullname);
 			}
-		}
+		});
+		items = itemList.toArray(new String[itemList.size()]);
 		if (!headless && !isMacro) {
-			choices[0].removeAll();
-			for (String item : items)
-				choices[0].addItem(item);
-			info.append(" - " + new SimpleDateFormat("HH:mm:ss").format(now) + " -- FINISHED LOADING MODELS");
+			info.append(" - " + new SimpleDateFormat("HH:mm:ss").format(new Date()) + " -- FINISHED LOADING MODELS");
 		}
 	}
 	
@@ -1329,7 +1731,8 @@ public class DeepImageJ_Run implements PlugIn, ItemListener, Runnable, ActionLis
 		int ind = choices[0].getSelectedIndex();
 		String fullname = Integer.toString(ind);
 		String dirname = fullnames.get(fullname);
-		DeepImageJ dp = dps.get(dirname);
+		DeepImageJ dp = dirname == null ? null : dps.get(dirname);
+		dp.params.loadDetails();
 		// Path to the test image specified in the rdf.yaml in 
 		// the >config>deepimagej>test_information part
 		String imageName = dp.getPath() + dp.params.inputList.get(0).exampleInput;
@@ -52,6 +52,12 @@ import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.tensorflow.SavedModelBundle;
 
@@ -62,13 +68,27 @@ import ai.djl.repository.zoo.ModelNotFoundException;
 import ai.djl.repository.zoo.ModelZoo;
 import ai.djl.repository.zoo.ZooModel;
 import ai.djl.training.util.ProgressBar;
+import deepimagej.tools.DigestCache;
 import deepimagej.tools.DijTensor;
 import deepimagej.tools.FileTools;
+import deepimagej.tools.ModelIndex;
 import ij.IJ;
 import ij.gui.GenericDialog;
 
 public class DeepImageJ {
 
+	/*
+	 * Maximum number of model folders that are read at the same time
+	 */
+	public static final int MAX_SCAN_THREADS = 8;
+	
+	/*
+	 * Notified every time a valid model is found while listing the models
+	 */
+	public interface ModelListener {
+		public void modelFound(DeepImageJ dp);
+	}
+	
 	private String					path;
 	public String					dirname;
 	public Parameters				params;
@@ -149,25 +169,45 @@ public class DeepImageJ {
 	}
 	
 	static public HashMap<String, DeepImageJ> list(String pathModels, boolean isDeveloper, TextArea textField, String modelDir) {
+		return list(pathModels, isDeveloper, textField, modelDir, null);
+	}
+	
+	/*
+	 * List the models, notifying the listener of each valid model as soon as it is
+	 * found. The listener is always called from the thread that lists the models
+	 */
+	static public HashMap<String, DeepImageJ> list(String pathModels, boolean isDeveloper, TextArea textField, String modelDir, ModelListener listener) {
 		if (modelDir == null)
-			return list(pathModels, isDeveloper, textField);
+			return scan(pathModels, isDeveloper, textField, listener);
 		if (!(new File(modelDir).isDirectory())) {
 			String err = "The following directory does not contain a model:" 
 					+ System.lineSeparator() + " - " + modelDir;
 			System.out.println("[DEBUG] " + err);
 			IJ.log(err);
-			return list(pathModels, isDeveloper, textField);
+			return scan(pathModels, isDeveloper, textField, listener);
 		}
 		HashMap<String, DeepImageJ> list = new HashMap<String, DeepImageJ>();
 		String name = new File(modelDir).getName();
 		DeepImageJ dp = new DeepImageJ(new File(modelDir).getParent() + File.separator, name, isDeveloper);
 		if (dp.valid && dp.params != null) {
 			list.put(dp.dirname, dp);
+			if (listener != null)
+				listener.modelFound(dp);
 		}
+		ModelIndex.save();
 		return list;
 	}
 	
 	static public HashMap<String, DeepImageJ> list(String pathModels, boolean isDeveloper, TextArea textField) {
+		return scan(pathModels, isDeveloper, textField, null);
+	}
+	
+	/*
+	 * Read every folder of the models directory. Reading the yaml and checking the
+	 * weights of a model is mostly waiting for the disk, so several folders are read
+	 * at the same time, and the models are given to the listener in the order they are ready
+	 */
+	static private HashMap<String, DeepImageJ> scan(final String pathModels, final boolean isDeveloper, final TextArea textField, ModelListener listener) {
 		HashMap<String, DeepImageJ> list = new HashMap<String, DeepImageJ>();
 		File models = new File(pathModels);
 		File[] dirs = models.listFiles();
@@ -178,19 +218,47 @@ public class DeepImageJ {
 			return list;
 		}
 
-		// FOrmat for the date
-		Date now = new Date(); 
-		for (File dir : dirs) {
-			if (dir.isDirectory()) {
-				String name = dir.getName();
-				if (textField != null)
-					textField.append(" - " + new SimpleDateFormat("HH:mm:ss").format(now) + " -- Looking for a model at: " + name + "\n");
-				DeepImageJ dp = new DeepImageJ(pathModels + File.separator, name, isDeveloper);
+		// In developer mode the model might ask which framework to use, so the
+		// folders are read one by one to never show several dialogs at once
+		int nThreads = isDeveloper ? 1 : Math.min(MAX_SCAN_THREADS, Runtime.getRuntime().availableProcessors());
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nThreads));
+		CompletionService<DeepImageJ> found = new ExecutorCompletionService<DeepImageJ>(pool);
+		int nDirs = 0;
+		for (final File dir : dirs) {
+			if (!dir.isDirectory())
+				continue;
+			found.submit(new Callable<DeepImageJ>() {
+				@Override
+				public DeepImageJ call() {
+					String name = dir.getName();
+					if (textField != null)
+						textField.append(" - " + new SimpleDateFormat("HH:mm:ss").format(new Date()) + " -- Looking for a model at: " + name + "\n");
+					return new DeepImageJ(pathModels + File.separator, name, isDeveloper);
+				}
+			});
+			nDirs ++;
+		}
+		try {
+			for (int i = 0; i < nDirs; i ++) {
+				DeepImageJ dp;
+				try {
+					dp = found.take().get();
+				} catch (ExecutionException ex) {
+					ex.getCause().printStackTrace();
+					continue;
+				}
 				if (dp.valid && dp.params != null) {
 					list.put(dp.dirname, dp);
+					if (listener != null)
+						listener.modelFound(dp);
 				}
 			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdownNow();
 		}
+		ModelIndex.save();
 		return list;
 	}
 
@@ -451,7 +519,7 @@ public class DeepImageJ {
 			if (file.equals(modelName) && !this.presentYaml) {
 				tfName = modelName;
 				return true;
-			} else if (file.equals(modelName) && FileTools.createSHA256(modelFolder.getPath() + File.separator + file).equals(params.tfSha256)) {
+			} else if (file.equals(modelName) && checkZipSha256(modelFolder, file)) {
 				tfName = modelName;
 				return true;
 			} else if (file.equals(modelName)) {
@@ -468,7 +536,7 @@ public class DeepImageJ {
 		}
 		if (auxPresent && !this.presentYaml) {
 			return true;
-		} else if (auxPresent && FileTools.createSHA256(modelFolder.getPath() + File.separator + auxModelName).equals(params.tfSha256)) {
+		} else if (auxPresent && checkZipSha256(modelFolder, auxModelName)) {
 			return true;
 		} else if (auxPresent) {
 			IJ.log("Zipped Bioimage Model Zoo model at:");
@@ -481,6 +549,20 @@ public class DeepImageJ {
 		return false;
 	}
 	
+	/*
+	 * Returns true if the checksum of the zipped Tensorflow model is the one in the yaml.
+	 * If the model has not been unzipped yet and the checksum is not in the cache, it is
+	 * calculated while unzipping the model instead, so the zip file is only read once
+	 */
+	private boolean checkZipSha256(File modelFolder, String zipName) throws IOException {
+		String zipPath = modelFolder.getPath() + File.separator + zipName;
+		if (!new File(modelFolder, "variables").exists() && DigestCache.getCached(zipPath) == null) {
+			params.verifyZipSha256 = true;
+			return true;
+		}
+		return DigestCache.createSHA256(zipPath).equals(params.tfSha256);
+	}
+	
 	/*
 	 * Method returns true if a torchscript model is found inside
 	 * of the folder provided and corresponds to the model defined in the rd.yaml
@@ -501,7 +583,7 @@ public class DeepImageJ {
 				if (!this.developer && file.contains(modelName) && !this.presentYaml) {
 					ptName = modelName;
 					return true;
-				} else if (!this.developer && file.contains(modelName) && FileTools.createSHA256(modelFolder.getPath() + File.separator + file).equals(params.ptSha256)) {
+				} else if (!this.developer && file.contains(modelName) && DigestCache.createSHA256(modelFolder.getPath() + File.separator + file).equals(params.ptSha256)) {
 					ptName = modelName;
 					return true;
 				} else if (this.developer && file.contains(".pt")) {
@@ -523,7 +605,7 @@ public class DeepImageJ {
 			// try with the default name
 			if (!this.developer && auxPresent && !this.presentYaml) {
 				return true;
-			} else if (!this.developer && auxPresent && FileTools.createSHA256(modelFolder.getPath() + File.separator + auxModelName).equals(params.ptSha256)) {
+			} else if (!this.developer && auxPresent && DigestCache.createSHA256(modelFolder.getPath() + File.separator + auxModelName).equals(params.ptSha256)) {
 				return true;
 			} else if (!this.developer && auxPresent) {
 				IJ.log("Zipped Bioimage Model Zoo model at:");
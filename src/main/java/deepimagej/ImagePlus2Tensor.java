@@ -44,36 +44,62 @@
 
 package deepimagej;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 import org.tensorflow.Tensor;
+import org.tensorflow.types.UInt8;
 
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import deepimagej.exceptions.BatchSizeBiggerThanOne;
 import deepimagej.exceptions.IncorrectNumberOfDimensions;
 import deepimagej.tools.ArrayOperations;
+import deepimagej.tools.MirroredImage;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.process.ImageProcessor;
 
 
 public class ImagePlus2Tensor {
 	// TODO allow other types of tensors
-	// TODO allow batch size != 1
 	// Methods to transform a DJL Pytorch and TF tensors into ImageJ ImagePlus
 	
-	public static NDArray imPlus2tensor(NDManager manager, ImagePlus img, String form, String ptVersion){
-		// Convert ImagePlus into tensor calling the corresponding
-		// method depending on the dimensions of the required tensor 
-		// Find the number of dimensions of the tensor
-		int nDim = form.length();
-		NDArray tensor = null;
-		if (nDim >= 2 && nDim <= 5) {
-			tensor = implus2NDArray(img, form, manager, ptVersion);
-		}
-		return tensor;
+	// Data types of the image tensors
+	public static final String FLOAT32 = "float32";
+	public static final String UINT8 = "uint8";
+	public static final String INT32 = "int32";
+	
+	/*
+	 * Data type in which the tiles of an image are given to the model. The pixels are
+	 * given without converting them to float when the model expects integers and the
+	 * values of the image fit in them: 'uint8' for 8-bit images and 'int32' for 8-bit
+	 * and 16-bit images. Images with a calibration function are always converted to float.
+	 * uint16 is not supported by the Tensorflow and DJL tensors, so 16-bit images are
+	 * converted to float for those models
+	 * @param imp: image
+	 * @param modelType: data type of the input of the model, as written in the rdf.yaml
+	 */
+	public static String findTensorType(ImagePlus imp, String modelType) {
+		if (modelType == null || imp.getCalibration().getCTable() != null)
+			return FLOAT32;
+		int bitDepth = imp.getBitDepth();
+		if (modelType.toLowerCase().equals(UINT8) && bitDepth == 8)
+			return UINT8;
+		else if (modelType.toLowerCase().equals(INT32) && (bitDepth == 8 || bitDepth == 16))
+			return INT32;
+		return FLOAT32;
+	}
+	
+	/*
+	 * Number of bytes of each element of a tensor of the data type
+	 */
+	public static int getElementSize(String type) {
+		return type.equals(UINT8) ? 1 : 4;
 	}
 	
 	/*
@@ -99,218 +125,277 @@ public class ImagePlus2Tensor {
 		return older;
 	}
 	
-	public static NDArray implus2NDArray(ImagePlus img, String form, NDManager manager, String ptVersion){
-		// Create a float array of four dimensions out of an 
-		// ImagePlus object
-		float[] matImage;
-		// Initialise ImageProcessor variable used later
-		ImageProcessor ip;
-		int[] dims = img.getDimensions();
-		int xSize = dims[0];
-		int ySize = dims[1];
-		int cSize = dims[2];
-		int zSize = dims[3];
-		// TODO allow different batch sizes
-		int batch = 1;
-		int[] tensorDims = new int[] {1, 1, 1, 1, 1};
-		// Create aux variable to indicate
-		// if it is channels one of the dimensions of
-		// the tensor or it is the batch size
-		int fBatch = -1;
-		int fChannel = -1;
-		int fDepth = -1;
-		int fWidth = -1;
-		int fHeight = -1;
-
+	/*
+	 * Create a Tensorflow tensor with several regions of the same image, each of them
+	 * at one position of the batch dimension. The regions are copied row by row from
+	 * the pixel arrays of the image, without creating an ImagePlus for them
+	 * @param img: image extended by mirroring that contains the regions
+	 * @param origins: position (x, y, z) of the first pixel of each region, optionally
+	 * followed by the frame of the region (starting at 0)
+	 * @param patchSize: size of the regions in the axes X, Y, C and Z
+	 * @param form: axes organization of the tensor
+	 * @param buffer: buffer where the tensor is written, see {@link #reuseBuffer(ByteBuffer, long)}
+	 * @return the tensor
+	 */
+	public static Tensor<Float> region2TensorFloat(MirroredImage img, int[][] origins, int[] patchSize, String form, ByteBuffer buffer) {
+		String fullForm = completeForm(form);
+		int[] tensorDims = getTensorDims(fullForm, patchSize, origins.length);
+		long[] arrayShape = new long[form.length()];
+		for (int i = 0; i < arrayShape.length; i ++)
+			arrayShape[i] = tensorDims[i];
+		FloatBuffer outBuff = region2Buffer(img, origins, fullForm, tensorDims, buffer, FLOAT32).asFloatBuffer();
+		return Tensor.create(arrayShape, outBuff);
+	}
+	
+	/*
+	 * Same as {@link #region2TensorFloat(MirroredImage, int[][], int[], String, ByteBuffer)} in
+	 * the data type given by {@link #findTensorType(ImagePlus, String)}. For integer types,
+	 * the pixels are copied without converting them to float
+	 */
+	public static Tensor<?> region2Tensor(MirroredImage img, int[][] origins, int[] patchSize, String form, 
+										ByteBuffer buffer, String type) {
+		if (type.equals(FLOAT32))
+			return region2TensorFloat(img, origins, patchSize, form, buffer);
+		String fullForm = completeForm(form);
+		int[] tensorDims = getTensorDims(fullForm, patchSize, origins.length);
+		long[] arrayShape = new long[form.length()];
+		for (int i = 0; i < arrayShape.length; i ++)
+			arrayShape[i] = tensorDims[i];
+		ByteBuffer outBuff = region2Buffer(img, origins, fullForm, tensorDims, buffer, type);
+		if (type.equals(UINT8))
+			return Tensor.create(UInt8.class, arrayShape, outBuff);
+		return Tensor.create(Integer.class, arrayShape, outBuff);
+	}
+	
+	/*
+	 * Same as {@link #region2TensorFloat(MirroredImage, int[][], int[], String, ByteBuffer)} for
+	 * a DJL Pytorch tensor. DJL uses the buffer without copying it, so it cannot be
+	 * reused until the NDArray is closed
+	 */
+	public static NDArray region2NDArray(MirroredImage img, int[][] origins, int[] patchSize, String form, NDManager manager,
+										String ptVersion, ByteBuffer buffer) {
+		return region2NDArray(img, origins, patchSize, form, manager, ptVersion, buffer, FLOAT32);
+	}
+	
+	/*
+	 * Same as {@link #region2NDArray(MirroredImage, int[][], int[], String, NDManager, String, ByteBuffer)} in
+	 * the data type given by {@link #findTensorType(ImagePlus, String)}
+	 */
+	public static NDArray region2NDArray(MirroredImage img, int[][] origins, int[] patchSize, String form, NDManager manager,
+										String ptVersion, ByteBuffer buffer, String type) {
+		String fullForm = completeForm(form);
+		int[] tensorDims = getTensorDims(fullForm, patchSize, origins.length);
 		// For DJL Pytorch versions <1.7.0, the batch size is not included in the tensor
-		long[] arrayShape = new long[form.length() - 1];
-		boolean old = olderThanPytorch170(ptVersion);
-		if (form.indexOf("B") != -1) {
-			fBatch = form.indexOf("B");
-			tensorDims[fBatch] = batch;
-			// For DJL Pytorch versions >=1.7.0, the batch size is included in the tensor
-			if (!old) {
-				arrayShape = new long[form.length()];
-				arrayShape[fBatch] = (long) batch;
-			} else {
-				String auxForm = form.substring(0, fBatch) +  form.substring(fBatch + 1);
-				IJ.log("WARNING: DJL Pytorch versions <=1.6.0 do not allow definition of the batch size.");
-				IJ.log("WARNING: Image input tensor  dimension organization has changed: " + form + " --> " + auxForm);
-			}
-		} else {
-			arrayShape = new long[form.length()];
-			fBatch = form.length();
-			form += "B";
-		}
-		if (form.indexOf("Y") != -1) {
-			fHeight = form.indexOf("Y");
-			tensorDims[fHeight] = ySize;
-			if (fBatch != -1 && fHeight > fBatch && old)
-				arrayShape[fHeight - 1] = (long) ySize;
-			else
-				arrayShape[fHeight] = (long) ySize;
-		} else {
-			fHeight = form.length();
-			form += "Y";
+		int batchIndex = form.indexOf("B");
+		boolean dropBatch = batchIndex != -1 && olderThanPytorch170(ptVersion);
+		if (dropBatch) {
+			String auxForm = form.substring(0, batchIndex) +  form.substring(batchIndex + 1);
+			IJ.log("WARNING: DJL Pytorch versions <=1.6.0 do not allow definition of the batch size.");
+			IJ.log("WARNING: Image input tensor  dimension organization has changed: " + form + " --> " + auxForm);
 		}
-		if (form.indexOf("X") != -1) {
-			fWidth = form.indexOf("X");
-			tensorDims[fWidth] = xSize;
-			if (fBatch != -1 && fWidth > fBatch && old)
-				arrayShape[fWidth - 1] = (long) xSize;
-			else
-				arrayShape[fWidth] = (long) xSize;
-		} else {
-			fWidth = form.length();
-			form += "X";
+		long[] arrayShape = new long[dropBatch ? form.length() - 1 : form.length()];
+		for (int i = 0, j = 0; i < form.length(); i ++) {
+			if (!dropBatch || i != batchIndex)
+				arrayShape[j ++] = tensorDims[i];
 		}
-		if (form.indexOf("C") != -1) {
-			fChannel = form.indexOf("C");
-			tensorDims[fChannel] = cSize;
-			if (fBatch != -1 && fChannel > fBatch && old)
-				arrayShape[fChannel - 1] = (long) cSize;
-			else
-				arrayShape[fChannel] = (long) cSize;
-		} else {
-			fChannel = form.length();
-			form += "C";
+		ByteBuffer outBuff = region2Buffer(img, origins, fullForm, tensorDims, buffer, type);
+		DataType dataType = type.equals(UINT8) ? DataType.UINT8 : (type.equals(INT32) ? DataType.INT32 : DataType.FLOAT32);
+		return manager.create(outBuff, new Shape(arrayShape), dataType);
+	}
+	
+	/*
+	 * Return the buffer, cleared, if it can hold exactly 'nElements' floats. Otherwise
+	 * allocate a new direct buffer with the native byte order. Used to keep one buffer
+	 * per thread for all the tiles of an image
+	 */
+	public static ByteBuffer reuseBuffer(ByteBuffer buffer, long nElements) {
+		return reuseBuffer(buffer, nElements, 4);
+	}
+	
+	/*
+	 * Same as {@link #reuseBuffer(ByteBuffer, long)} for elements of 'elementSize' bytes
+	 */
+	public static ByteBuffer reuseBuffer(ByteBuffer buffer, long nElements, int elementSize) {
+		if (buffer != null && buffer.capacity() == nElements * elementSize) {
+			buffer.clear();
+			return buffer;
 		}
-		if (form.indexOf("Z") != -1) {
-			fDepth = form.indexOf("Z");
-			tensorDims[fDepth] = zSize;
-			if (fBatch != -1 && fDepth > fBatch && old)
-				arrayShape[fDepth - 1] = (long) zSize;
+		return ByteBuffer.allocateDirect((int) nElements * elementSize).order(ByteOrder.nativeOrder());
+	}
+	
+	/*
+	 * Write the regions of the image in the buffer following the axes order of 'fullForm',
+	 * in the data type 'type'
+	 */
+	static ByteBuffer region2Buffer(MirroredImage img, int[][] origins, String fullForm, int[] tensorDims, 
+											ByteBuffer buffer, String type) {
+		long[] shape = new long[fullForm.length()];
+		long nElements = 1;
+		for (int i = 0; i < shape.length; i ++) {
+			shape[i] = tensorDims[i];
+			nElements *= shape[i];
+		}
+		buffer = reuseBuffer(buffer, nElements, getElementSize(type));
+		FloatBuffer buff = type.equals(FLOAT32) ? buffer.asFloatBuffer() : null;
+		int[] strides = getStrides(fullForm, shape, "XYCZB");
+		int[] sizes = new int[4];
+		String[] axes = "XYCZ".split("");
+		for (int i = 0; i < axes.length; i ++)
+			sizes[i] = (int) shape[fullForm.indexOf(axes[i])];
+		for (int b = 0; b < origins.length; b ++) {
+			int frame = origins[b].length > 3 ? origins[b][3] + 1 : 1;
+			if (buff != null)
+				mirror2Buffer(img, frame, origins[b][0], origins[b][1], origins[b][2], buff, b * strides[4], strides, sizes);
 			else
-				arrayShape[fDepth] = (long) zSize;
-		} else {
-			fDepth = form.length();
-			form += "Z";
+				mirror2IntegerBuffer(img, frame, origins[b][0], origins[b][1], origins[b][2], buffer, 
+									getElementSize(type), b * strides[4], strides, sizes);
 		}
-		matImage = new float[tensorDims[0] * tensorDims[1] * tensorDims[2] * tensorDims[3] * tensorDims[4]];
-		
-		// Make sure the array is written from last dimension to first dimension.
-		// For example, for CYX we first iterate over all the X, then over the Y and then 
-		// over the C
-		int[] auxCounter = new int[5];
-		int pos = 0;
-		for (int t0 = 0; t0 < tensorDims[0]; t0 ++) {
-			auxCounter[0] = t0;
-			for (int t1 = 0; t1 < tensorDims[1]; t1 ++) {
-				auxCounter[1] = t1;
-				for (int t2 = 0; t2 < tensorDims[2]; t2 ++) {	
-					auxCounter[2] = t2;
-					for (int t3 = 0; t3 < tensorDims[3]; t3 ++) {
-						auxCounter[3] = t3;
-						for (int t4 = 0; t4 < tensorDims[4]; t4 ++) {	
-							auxCounter[4] = t4;
-							
-							img.setPositionWithoutUpdate(auxCounter[fChannel] + 1, auxCounter[fDepth] + 1, 1);
-							ip = img.getProcessor();
-							matImage[pos ++] = ip.getPixelValue(auxCounter[fWidth], auxCounter[fHeight]);
-						}
-					}	
+		return buffer;
+	}
+	
+	/*
+	 * Same as {@link #mirror2Buffer(MirroredImage, int, int, int, int, FloatBuffer, int, int[], int[])} for
+	 * tensors of unsigned 8-bit (elementSize = 1) or 32-bit integers (elementSize = 4).
+	 * The pixels of 8-bit and 16-bit images are copied without converting them to float
+	 */
+	public static void mirror2IntegerBuffer(MirroredImage mirror, int frame, int xStart, int yStart, int zStart,
+										ByteBuffer buff, int elementSize, int offset, int[] strides, int[] sizes) {
+		ImagePlus img = mirror.image;
+		ImageStack stack = img.getStack();
+		int width = img.getWidth();
+		boolean contiguous = mirror.isContiguousX(xStart, sizes[0]);
+		for (int c = 0; c < sizes[2]; c ++) {
+			for (int z = 0; z < sizes[3]; z ++) {
+				int stackIndex = img.getStackIndex(c + 1, mirror.getZ(z + zStart) + 1, frame);
+				// The slices of virtual stacks are read from disk every time they are requested
+				Object pixels = stack.isVirtual() ? stack.getProcessor(stackIndex).getPixels() : stack.getPixels(stackIndex);
+				int planeOffset = offset + c * strides[2] + z * strides[3];
+				for (int y = 0; y < sizes[1]; y ++) {
+					int rowStart = mirror.getY(y + yStart) * width;
+					int rowOffset = planeOffset + y * strides[1];
+					// The rows of 8-bit images are copied at once into 8-bit tensors
+					if (elementSize == 1 && contiguous && strides[0] == 1) {
+						buff.position(rowOffset);
+						buff.put((byte[]) pixels, rowStart + mirror.getX(xStart), sizes[0]);
+						continue;
+					}
+					for (int x = 0; x < sizes[0]; x ++) {
+						int index = rowStart + mirror.getX(x + xStart);
+						int pos = rowOffset + x * strides[0];
+						if (elementSize == 1)
+							buff.put(pos, ((byte[]) pixels)[index]);
+						else if (pixels instanceof byte[])
+							buff.putInt(pos * 4, ((byte[]) pixels)[index] & 0xff);
+						else
+							buff.putInt(pos * 4, ((short[]) pixels)[index] & 0xffff);
+					}
 				}
 			}
 		}
-		FloatBuffer outBuff = FloatBuffer.wrap(matImage);
-		NDArray tensor = manager.create(matImage, new Shape(arrayShape));
-	return tensor;
+		buff.rewind();
 	}
 	
-	public static Tensor<Float> implus2TensorFloat(ImagePlus img, String form){
-		// Create a float array of four dimensions out of an 
-		// ImagePlus object
-		float[] matImage;
-		// Initialise ImageProcessor variable used later
-		ImageProcessor ip;
-		int[] dims = img.getDimensions();
-		int xSize = dims[0];
-		int ySize = dims[1];
-		int cSize = dims[2];
-		int zSize = dims[3];
-		// TODO allow different batch sizes
-		int batch = 1;
-		int[] tensorDims = new int[] {1, 1, 1, 1, 1};
-		// Create aux variable to indicate
-		// if it is channels one of the dimensions of
-		// the tensor or it is the batch size
-		int fBatch = -1;
-		int fChannel = -1;
-		int fDepth = -1;
-		int fWidth = -1;
-		int fHeight = -1;
-
-		long[] arrayShape = new long[form.length()];
-		if (form.indexOf("B") != -1) {
-			fBatch = form.indexOf("B");
-			tensorDims[fBatch] = batch;
-			arrayShape[fBatch] = (long) batch;
-		} else {
-			fBatch = form.length();
-			form += "B";
-		}
-		if (form.indexOf("Y") != -1) {
-			fHeight = form.indexOf("Y");
-			tensorDims[fHeight] = ySize;
-			arrayShape[fHeight] = (long) ySize;
-		} else {
-			fHeight = form.length();
-			form += "Y";
-		}
-		if (form.indexOf("X") != -1) {
-			fWidth = form.indexOf("X");
-			tensorDims[fWidth] = xSize;
-			arrayShape[fWidth] = (long) xSize;
-		} else {
-			fWidth = form.length();
-			form += "X";
-		}
-		if (form.indexOf("C") != -1) {
-			fChannel = form.indexOf("C");
-			tensorDims[fChannel] = cSize;
-			arrayShape[fChannel] = (long) cSize;
-		} else {
-			fChannel = form.length();
-			form += "C";
-		}
-		if (form.indexOf("Z") != -1) {
-			fDepth = form.indexOf("Z");
-			tensorDims[fDepth] = zSize;
-			arrayShape[fDepth] = (long) zSize;
-		} else {
-			fDepth = form.length();
-			form += "Z";
-		}
-		matImage = new float[tensorDims[0] * tensorDims[1] * tensorDims[2] * tensorDims[3] * tensorDims[4]];
-		
-		// Make sure the array is written from last dimension to first dimension.
-		// For example, for CYX we first iterate over all the X, then over the Y and then 
-		// over the C
-		int[] auxCounter = new int[5];
-		int pos = 0;
-		for (int t0 = 0; t0 < tensorDims[0]; t0 ++) {
-			auxCounter[0] = t0;
-			for (int t1 = 0; t1 < tensorDims[1]; t1 ++) {
-				auxCounter[1] = t1;
-				for (int t2 = 0; t2 < tensorDims[2]; t2 ++) {	
-					auxCounter[2] = t2;
-					for (int t3 = 0; t3 < tensorDims[3]; t3 ++) {
-						auxCounter[3] = t3;
-						for (int t4 = 0; t4 < tensorDims[4]; t4 ++) {	
-							auxCounter[4] = t4;
-							
-							img.setPositionWithoutUpdate(auxCounter[fChannel] + 1, auxCounter[fDepth] + 1, 1);
-							ip = img.getProcessor();
-							matImage[pos ++] = ip.getPixelValue(auxCounter[fWidth], auxCounter[fHeight]);
-						}
-					}	
+	/*
+	 * Write the region of the frame 'frame' (starting at 1) of an image extended by mirroring
+	 * that starts at the pixel ('xStart', 'yStart', 'zStart') into the buffer, starting at
+	 * the position 'offset'. The arrays 'strides' and 'sizes' contain the stride in the buffer
+	 * and the number of pixels copied for the axes X, Y, C and Z, in that order.
+	 * The coordinates are translated into coordinates of the original image with the tables
+	 * of the MirroredImage, so the extended image is never created. The image is only read,
+	 * so several threads can copy regions of the same image at the same time
+	 */
+	public static void mirror2Buffer(MirroredImage mirror, int frame, int xStart, int yStart, int zStart,
+									FloatBuffer buff, int offset, int[] strides, int[] sizes) {
+		ImagePlus img = mirror.image;
+		ImageStack stack = img.getStack();
+		int width = img.getWidth();
+		float[] cTable = img.getCalibration().getCTable();
+		float[] row = new float[sizes[0]];
+		// Rows that cross the mirrored borders are read entirely and then reordered
+		boolean contiguous = mirror.isContiguousX(xStart, sizes[0]);
+		float[] fullRow = contiguous ? null : new float[width];
+		for (int c = 0; c < sizes[2]; c ++) {
+			for (int z = 0; z < sizes[3]; z ++) {
+				int stackIndex = img.getStackIndex(c + 1, mirror.getZ(z + zStart) + 1, frame);
+				ImageProcessor ip = null;
+				Object pixels;
+				// The slices of virtual stacks are read from disk every time they are
+				// requested, so the slice is read only once
+				if (stack.isVirtual()) {
+					ip = stack.getProcessor(stackIndex);
+					pixels = ip.getPixels();
+				} else {
+					pixels = stack.getPixels(stackIndex);
+				}
+				// RGB pixels are converted to gray values by the ImageProcessor
+				if (pixels instanceof int[] && ip == null)
+					ip = stack.getProcessor(stackIndex);
+				int planeOffset = offset + c * strides[2] + z * strides[3];
+				for (int y = 0; y < sizes[1]; y ++) {
+					int yImage = mirror.getY(y + yStart);
+					if (contiguous) {
+						ArrayOperations.getRowAsFloat(pixels, ip, cTable, width, yImage, mirror.getX(xStart), sizes[0], row, 0);
+					} else {
+						ArrayOperations.getRowAsFloat(pixels, ip, cTable, width, yImage, 0, width, fullRow, 0);
+						for (int x = 0; x < sizes[0]; x ++)
+							row[x] = fullRow[mirror.getX(x + xStart)];
+					}
+					int rowOffset = planeOffset + y * strides[1];
+					if (strides[0] == 1) {
+						buff.position(rowOffset);
+						buff.put(row, 0, sizes[0]);
+					} else {
+						for (int x = 0; x < sizes[0]; x ++)
+							buff.put(rowOffset + x * strides[0], row[x]);
+					}
 				}
 			}
 		}
-		FloatBuffer outBuff = FloatBuffer.wrap(matImage);
-	 	
-		Tensor<Float> tensor = Tensor.create(arrayShape, outBuff);
-	return tensor;
+		buff.rewind();
+	}
+	
+	/*
+	 * Add to the form the axes it does not contain, so the position of all 
+	 * of them can be found in it
+	 */
+	static String completeForm(String form) {
+		for (String axis : "BYXCZ".split("")) {
+			if (form.indexOf(axis) == -1)
+				form += axis;
+		}
+		return form;
+	}
+	
+	/*
+	 * Size of the tensor at each of the letters of the complete form, for a batch of
+	 * images whose size in the axes X, Y, C and Z is 'size'
+	 */
+	static int[] getTensorDims(String fullForm, int[] size, int batch) {
+		int[] tensorDims = new int[fullForm.length()];
+		for (int i = 0; i < tensorDims.length; i ++) {
+			char axis = fullForm.charAt(i);
+			tensorDims[i] = axis == 'B' ? batch : size["XYCZ".indexOf(axis)];
+		}
+		return tensorDims;
+	}
+	
+	/*
+	 * Get the stride of each of the axes in 'axes' for a tensor with the given
+	 * form and shape. The axes that do not appear in the form have stride 0.
+	 * The letters of the form that are not part of the shape are considered of size 1
+	 */
+	public static int[] getStrides(String form, long[] shape, String axes) {
+		int[] strides = new int[axes.length()];
+		for (int i = 0; i < strides.length; i ++) {
+			int ind = form.indexOf(axes.charAt(i));
+			if (ind == -1)
+				continue;
+			int stride = 1;
+			for (int j = ind + 1; j < form.length(); j ++)
+				stride *= j < shape.length ? shape[j] : 1;
+			strides[i] = stride;
+		}
+		return strides;
 	}
 	
 	
@@ -339,7 +424,6 @@ public class ImagePlus2Tensor {
 			
 		if (tensorShape.length != form.length())
 			throw new IncorrectNumberOfDimensions(tensorShape, form, name);
-		int[] completeTensorShape = longShape6(tensorShape);
 		int[] imageDims = {1, 1, 1, 1, 1};
 		
 		// TODO add possibility of batch>1
@@ -387,28 +471,12 @@ public class ImagePlus2Tensor {
 			form += "Z";
 		}
 		
-		float[] flatImageArray = tensor.toFloatArray();
-		double[][][][][] matImage = new double[imageDims[0]][imageDims[1]][imageDims[2]][imageDims[3]][imageDims[4]];
-		
-		int pos = 0;
-		int[] auxInd = {0, 0, 0, 0, 0};
-		for (int i0 = 0; i0 < completeTensorShape[0]; i0 ++) {
-			auxInd[0] = i0;
-			for (int i1 = 0; i1 < completeTensorShape[1]; i1 ++) {
-				auxInd[1] = i1;
-				for (int i2 = 0; i2 < completeTensorShape[2]; i2 ++) {
-					auxInd[2] = i2;
-					for (int i3 = 0; i3 < completeTensorShape[3]; i3 ++) {
-						auxInd[3] = i3;
-						for (int i4 = 0; i4 < completeTensorShape[4]; i4 ++) {
-							auxInd[4] = i4;
-							matImage[auxInd[fWidth]][auxInd[fHeight]][auxInd[fChannel]][auxInd[fDepth]][auxInd[fBatch]] = (double) flatImageArray[pos ++];
-						}
-					}
-				}
-			}
-		}
-		imPlus = ArrayOperations.convertArrayToImagePlus(matImage, imageDims);
+		// Copy the tensor into a native buffer and write it directly into the
+		// slices of the image
+		if (tensor.getDataType() != DataType.FLOAT32)
+			tensor = tensor.toType(DataType.FLOAT32, false);
+		FloatBuffer outBuff = tensor.toByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		imPlus = buffer2ImagePlus(outBuff, form, tensorShape, imageDims);
 		
 		return imPlus;
 	}	
@@ -425,7 +493,6 @@ public class ImagePlus2Tensor {
 		long[] tensorShape = tensor.shape();
 		if (tensorShape.length != form.length())
 			throw new IncorrectNumberOfDimensions(tensorShape, form, name);
-		int[] completeTensorShape = longShape6(tensorShape);
 		int[] imageDims = {1, 1, 1, 1, 1};
 		
 		int batchIndex = form.indexOf("B");
@@ -475,42 +542,109 @@ public class ImagePlus2Tensor {
 			form += "Z";
 		}
 		
-		float[] flatImageArray = new float[imageDims[0] * imageDims[1] * imageDims[2] * imageDims[3] * imageDims[4]];
-
-		FloatBuffer outBuff = FloatBuffer.wrap(flatImageArray);
+		// Copy the tensor into a native buffer and write it directly into the
+		// slices of the image
+		FloatBuffer outBuff = ByteBuffer.allocateDirect(tensor.numElements() * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
 	 	tensor.writeTo(outBuff);
-		double[][][][][] matImage = new double[imageDims[0]][imageDims[1]][imageDims[2]][imageDims[3]][imageDims[4]];
-		
-		int pos = 0;
-		int[] auxInd = {0, 0, 0, 0, 0};
-		for (int i0 = 0; i0 < completeTensorShape[0]; i0 ++) {
-			auxInd[0] = i0;
-			for (int i1 = 0; i1 < completeTensorShape[1]; i1 ++) {
-				auxInd[1] = i1;
-				for (int i2 = 0; i2 < completeTensorShape[2]; i2 ++) {
-					auxInd[2] = i2;
-					for (int i3 = 0; i3 < completeTensorShape[3]; i3 ++) {
-						auxInd[3] = i3;
-						for (int i4 = 0; i4 < completeTensorShape[4]; i4 ++) {
-							auxInd[4] = i4;
-							matImage[auxInd[fWidth]][auxInd[fHeight]][auxInd[fChannel]][auxInd[fDepth]][auxInd[fBatch]] = (double) flatImageArray[pos ++];
+	 	outBuff.rewind();
+		imPlus = buffer2ImagePlus(outBuff, form, tensorShape, imageDims);
+		return imPlus;
+	}	
+	
+	/*
+	 * Convert a tensor that contains several tiles along the batch dimension into
+	 * one ImagePlus per tile. The form of the tensor has to contain the batch dimension
+	 */
+	public static ImagePlus[] tensor2ImagePlusBatch(Tensor<?> tensor, String form, String name) throws IncorrectNumberOfDimensions {
+		long[] tensorShape = tensor.shape();
+		if (tensorShape.length != form.length())
+			throw new IncorrectNumberOfDimensions(tensorShape, form, name);
+		FloatBuffer outBuff = ByteBuffer.allocateDirect(tensor.numElements() * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	 	tensor.writeTo(outBuff);
+	 	outBuff.rewind();
+		return buffer2ImagePlusBatch(outBuff, form, tensorShape);
+	}
+	
+	/*
+	 * Convert an NDArray that contains several tiles along the batch dimension into
+	 * one ImagePlus per tile. The form of the tensor has to contain the batch dimension
+	 */
+	public static ImagePlus[] NDArray2ImagePlusBatch(NDArray tensor, String form, String name) throws IncorrectNumberOfDimensions {
+		long[] tensorShape = tensor.getShape().getShape();
+		if (tensorShape.length != form.length())
+			throw new IncorrectNumberOfDimensions(tensorShape, form, name);
+		if (tensor.getDataType() != DataType.FLOAT32)
+			tensor = tensor.toType(DataType.FLOAT32, false);
+		FloatBuffer outBuff = tensor.toByteBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		return buffer2ImagePlusBatch(outBuff, form, tensorShape);
+	}
+	
+	/*
+	 * Create one ImagePlus for each of the positions of the batch dimension of the tensor
+	 * contained in the buffer
+	 */
+	private static ImagePlus[] buffer2ImagePlusBatch(FloatBuffer buff, String form, long[] tensorShape) {
+		int[] imageDims = {1, 1, 1, 1, 1};
+		String[] axes = "XYCZ".split("");
+		for (int i = 0; i < axes.length; i ++) {
+			int ind = form.indexOf(axes[i]);
+			if (ind != -1)
+				imageDims[i] = (int) tensorShape[ind];
+		}
+		int nBatch = (int) tensorShape[form.indexOf("B")];
+		int batchStride = getStrides(form, tensorShape, "B")[0];
+		ImagePlus[] imps = new ImagePlus[nBatch];
+		for (int b = 0; b < nBatch; b ++)
+			imps[b] = buffer2ImagePlus(buff, b * batchStride, form, tensorShape, imageDims);
+		return imps;
+	}
+	
+	/*
+	 * Create an ImagePlus out of a buffer that contains a tensor. 'form' is the complete
+	 * form of the tensor, containing the letters B, Y, X, C and Z, and 'tensorShape' the size
+	 * of the tensor at each of the letters of the form. 'imageDims' are the dimensions of the
+	 * image in the order [x, y, c, z, b]. Each of the slices of the image is
+	 * filled directly from the buffer, without intermediate arrays
+	 */
+	public static ImagePlus buffer2ImagePlus(FloatBuffer buff, String form, long[] tensorShape, int[] imageDims) {
+		return buffer2ImagePlus(buff, 0, form, tensorShape, imageDims);
+	}
+	
+	/*
+	 * Same as buffer2ImagePlus(), but starting to read the buffer at the position 'offset'
+	 */
+	public static ImagePlus buffer2ImagePlus(FloatBuffer buff, int offset, String form, long[] tensorShape, int[] imageDims) {
+		int nx = imageDims[0];
+		int ny = imageDims[1];
+		int nc = imageDims[2];
+		int nz = imageDims[3];
+		int nb = imageDims[4];
+		int[] strides = getStrides(form, tensorShape, "XYCZB");
+		ImageStack stack = new ImageStack(nx, ny);
+		for (int b = 0; b < nb; b ++) {
+			for (int z = 0; z < nz; z ++) {
+				for (int c = 0; c < nc; c ++) {
+					float[] pixels = new float[nx * ny];
+					int planeOffset = offset + c * strides[2] + z * strides[3] + b * strides[4];
+					for (int y = 0; y < ny; y ++) {
+						int rowOffset = planeOffset + y * strides[1];
+						if (strides[0] == 1) {
+							buff.position(rowOffset);
+							buff.get(pixels, y * nx, nx);
+						} else {
+							for (int x = 0; x < nx; x ++)
+								pixels[y * nx + x] = buff.get(rowOffset + x * strides[0]);
 						}
 					}
+					stack.addSlice(null, pixels);
 				}
 			}
 		}
-		imPlus = ArrayOperations.convertArrayToImagePlus(matImage, imageDims);
-		return imPlus;
-	}	
-	
-	private static int[] longShape6(long[] shape) {
-		// First convert add the needed entries with value 1 to the array
-		// until its length is 5
-		int[] f_shape = { 1, 1, 1, 1, 1, 1 };
-		for (int i = 0; i < shape.length; i++) {
-			f_shape[i] = (int) shape[i];
-		}
-		return f_shape;
+		buff.rewind();
+		ImagePlus imp = new ImagePlus("out", stack);
+		imp.setDimensions(nc, nz, nb);
+		imp.setOpenAsHyperStack(true);
+		return imp;
 	}
 	
 	// Convert image plus into int array 
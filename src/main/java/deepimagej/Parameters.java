@@ -58,7 +58,8 @@ import java.util.Map;
 import java.util.Set;
 
 import deepimagej.tools.DijTensor;
-import deepimagej.tools.YAMLUtils;
+import deepimagej.tools.ModelIndex;
+import ij.IJ;
 import ij.ImagePlus;
 
 public class Parameters {
@@ -186,6 +187,11 @@ public class Parameters {
 	 *  one saved specified in the rdf.yaml
 	 */
 	public boolean incorrectSha256 = false;
+	/*
+	 * Whether the checksum of the zipped Tensorflow model still has to be
+	 * checked. It is checked while the model is unzipped
+	 */
+	public boolean verifyZipSha256 = false;
 	
 	/*
 	 *  Boolean informing if the config file contains the ModelCharacteristics
@@ -202,6 +208,69 @@ public class Parameters {
 	 * Version of the DJL Pytorch being used to run Pytorch
 	 */
 	public String pytorchVersion = "";
+	
+	/*
+	 * Number of tiles that are processed at the same time when running
+	 * the model. Given by the optional Macro argument 'tile_concurrency'
+	 */
+	public int tileConcurrency = 1;
+	
+	/*
+	 * Number of tiles grouped in the batch dimension of each call to the
+	 * model, 0 to choose it from the free memory. Given by the optional Macro
+	 * argument 'tile_batch'
+	 */
+	public int tileBatch = 1;
+	
+	/*
+	 * Blending of the overlapping parts of the output tiles: "none", "linear"
+	 * or "cosine". Given by the optional Macro argument 'tile_blending'
+	 */
+	public String tileBlending = "none";
+	/*
+	 * Folder where the output images are written tile by tile instead of
+	 * being kept in memory, null to keep them in memory. Given by the optional
+	 * Macro argument 'output_chunks'
+	 */
+	public String outputChunks = null;
+	/*
+	 * Statistic used to find the empty tiles, that are not run through the
+	 * model, "std" or "max". Null to run all the tiles. Given by the optional
+	 * Macro argument 'skip_statistic' when 'skip_empty' is given
+	 */
+	public String skipStatistic = null;
+	/*
+	 * Tiles whose statistic is smaller or equal than this value are empty.
+	 * Given by the optional Macro argument 'skip_empty'
+	 */
+	public double skipThreshold = 0;
+	/*
+	 * Value of the outputs of the empty tiles. Given by the optional
+	 * Macro argument 'skip_fill'
+	 */
+	public float skipFill = 0;
+	/*
+	 * Bit depth of the output images processed by tiles: 8, 16 or 32. Given by
+	 * the optional Macro argument 'output_type'
+	 */
+	public int outputBitDepth = 32;
+	/*
+	 * Range of values of the outputs mapped to the range of 8-bit and 16-bit
+	 * outputs, null to round the values. Given by the optional Macro
+	 * argument 'output_range'
+	 */
+	public double[] outputRange = null;
+	/*
+	 * Reduction of the channels of the output tiles: "argmax", "softmax_argmax"
+	 * or "threshold", null for none. Given by the optional key 'output_reduction'
+	 * of config>deepimagej in the rdf.yaml or by the Macro argument with the same name
+	 */
+	public String outputReduction = null;
+	/*
+	 * Threshold of the "threshold" reduction. Given by the key 'reduction_threshold'
+	 * of config>deepimagej in the rdf.yaml or by the Macro argument with the same name
+	 */
+	public double reductionThreshold = 0.5;
 		
 	/*
 	 * SAmple inputs used to create the model.
@@ -297,6 +366,10 @@ public class Parameters {
 	 * weights folder
 	 */
 	public String selectedModelPath = "";
+	/*
+	 * Whether the information read by {@link #loadDetails()} has already been read
+	 */
+	private boolean detailsLoaded = false;
 	
 	public Parameters(boolean valid, String path, boolean isDeveloper) {
 		// If the model is not valid or we are in the developer plugin,
@@ -313,10 +386,11 @@ public class Parameters {
 			return;
 		Map<String, Object> obj = new HashMap<String, Object>();
 		try {
+			// The yaml is only parsed if it has changed since the models were last listed
 			if (rdfFile.isFile())
-				obj =  YAMLUtils.readConfig(rdfFile.getAbsolutePath());
+				obj =  ModelIndex.readConfig(rdfFile);
 			else
-				obj =  YAMLUtils.readConfig(yamlFile.getAbsolutePath());
+				obj =  ModelIndex.readConfig(yamlFile);
 		} catch (Exception ex) {
 			fieldsMissing = new ArrayList<String>();
 			fieldsMissing.add("Unable to read the yaml file");
@@ -339,62 +413,7 @@ public class Parameters {
 			return;
 		}
 		
-		// Adapt to versions 0.3.2, 0.3.1 and 0.3.0 of the yaml file
-		// 0.3.2 provides a list of dictionaries
-		if (obj.get("authors") instanceof List &&  ((List<Object>) obj.get("authors")).get(0) instanceof HashMap) {
-			author = (List<HashMap<String, String>>) obj.get("authors");
-		// 0.3.0 and 0.3.1 provide a list of Strings
-		} else if (obj.get("authors") instanceof List &&  ((List<Object>) obj.get("authors")).get(0) instanceof String) {
-			List<String> auxList = (List<String>) obj.get("authors");
-			author = new ArrayList<HashMap<String, String>>();
-			for (String element : auxList) {
-				HashMap<String, String> auxMap = new HashMap<String, String>();
-				auxMap.put("name", element);
-				auxMap.put("affiliation", null);
-				auxMap.put("orcid", null);
-				author.add(auxMap);
-			}
-			
-		// Python Dij packager provides a String
-		} else if (obj.get("authors") instanceof String) {
-			String aux = "" + obj.get("authors");
-			HashMap<String, String> auxMap = new HashMap<String, String>();
-			auxMap.put("name", aux);
-			auxMap.put("affiliation", "");
-			auxMap.put("orcid", "");
-			author = new ArrayList<HashMap<String, String>>();
-			author.add(auxMap);
-		// If nothing is recognised
-		} else {
-			HashMap<String, String> auxMap = new HashMap<String, String>();
-			auxMap.put("name", "n/a");
-			auxMap.put("affiliation", "");
-			auxMap.put("orcid", "");
-			author = new ArrayList<HashMap<String, String>>();
-			author.add(auxMap);
-		}
-		
-		timestamp = "" +  obj.get("timestamp");
-
-		// Citation
-		Object citation = obj.get("cite");
-		if (citation instanceof List) {
-			cite = (List<HashMap<String, String>>) citation;
-		} else if (citation instanceof HashMap<?, ?>) {
-			cite = new ArrayList<HashMap<String, String>>();
-			cite.add((HashMap<String, String>) citation);
-		} else {
-			cite = new ArrayList<HashMap<String, String>>();
-			HashMap<String, String> c = new HashMap<String, String>();
-			c.put("text", "");
-			c.put("doi", "");
-			cite.add(c);
-		}
-		
-		documentation = (String) "" + obj.get("documentation");
-		license = (String) "" + obj.get("license");
 		framework = (String) "" + obj.get("framework");
-		git_repo = (String) "" + obj.get("git_repo");
 		
 		LinkedHashMap<String, Object> weights = (LinkedHashMap<String, Object>) obj.get("weights");
 		// Look for the valid weights tags
@@ -407,26 +426,6 @@ public class Parameters {
 				HashMap<String, Object> tfMap = ((HashMap<String, Object>) weights.get("tensorflow_saved_model_bundle"));
 				// Look for the name of the model. The model can be called differently sometimes
 				tfSource = (String) tfMap.get("source");
-				
-				// Retrieve the Tensorflow attachments
-				ArrayList<String> attachmentsAux = null;
-				if (tfMap.get("attachments") instanceof HashMap<?, ?>) {
-					HashMap<String, Object> attachmentsMap = (HashMap<String, Object>) tfMap.get("attachments");
-					if (attachmentsMap.get("files") instanceof ArrayList)
-						attachmentsAux = (ArrayList<String>) attachmentsMap.get("files");
-				}
-				
-				tfAttachments = new ArrayList<String>();
-				tfAttachmentsNotIncluded = new ArrayList<String>();
-				String defaultFlag = "Include here any plugin that might be required for pre- or post-processing";
-				if (attachmentsAux != null) {
-					for (String str : attachmentsAux) {
-						if (new File(path2Model, str).isFile() && !str.contentEquals(""))
-							tfAttachments.add(new File(path2Model, str).getAbsolutePath());
-						else if (!str.contentEquals(defaultFlag))
-							tfAttachmentsNotIncluded.add(str);
-					}
-				}
 			} else if (format.equals("pytorch_script") || format.equals("torchscript")) {
 				HashMap<String, Object> ptMap = ((HashMap<String, Object>) weights.get("pytorch_script"));
 				if (ptMap == null)
@@ -434,25 +433,6 @@ public class Parameters {
 				// Look for the name of the model. The model can be called differently sometimes
 				ptSource = (String) ptMap.get("source");
 				pt = true;
-				// Retrieve the Pytorch attachments
-				ArrayList<String> attachmentsAux = null;
-				if (ptMap.get("attachments") instanceof HashMap<?, ?>) {
-					HashMap<String, Object> attachmentsMap = (HashMap<String, Object>) ptMap.get("attachments");
-					if (attachmentsMap.get("files") instanceof ArrayList)
-						attachmentsAux = (ArrayList<String>) attachmentsMap.get("files");
-				}
-				
-				ptAttachments = new ArrayList<String>();
-				ptAttachmentsNotIncluded = new ArrayList<String>();
-				String defaultFlag = "Include here any plugin that might be required for pre- or post-processing";
-				if (attachmentsAux != null) {
-					for (String str : attachmentsAux) {
-						if (new File(path2Model, str).isFile() && !str.contentEquals(""))
-							ptAttachments.add(new File(path2Model, str).getAbsolutePath());
-						else if (!str.contentEquals(defaultFlag))
-							ptAttachmentsNotIncluded.add(str);
-					}
-				}
 			}
 		}
 		
@@ -486,37 +466,20 @@ public class Parameters {
 		// Model metadata
 		Map<String, Object> config = (Map<String, Object>) obj.get("config");
 		Map<String, Object> deepimagej = (Map<String, Object>) config.get("deepimagej");
-		List<LinkedHashMap<String, Object>> input_information = null;
-		List<LinkedHashMap<String, Object>> output_information = null;
 		if (deepimagej != null) {
 			pyramidalNetwork = (boolean) deepimagej.get("pyramidal_model");
 			allowPatching = (boolean) deepimagej.get("allow_tiling");
+			// Optional reduction of the channels of the outputs
+			if (deepimagej.get("output_reduction") != null)
+				outputReduction = ("" + deepimagej.get("output_reduction")).toLowerCase();
+			if (deepimagej.get("reduction_threshold") instanceof Number)
+				reductionThreshold = ((Number) deepimagej.get("reduction_threshold")).doubleValue();
 			// Model keys
 			if (deepimagej.keySet().contains("model_keys") && deepimagej.get("model_keys") != null) {
 				Map<String, Object> model_keys = (Map<String, Object>) deepimagej.get("model_keys");
 				tag = (String) "" + model_keys.get("tensorflow_model_tag");
 				graph = (String) "" + model_keys.get("tensorflow_siganture_def");
 			}
-			Map<String, Object> test_information = (Map<String, Object>) deepimagej.get("test_information");
-
-			input_information = new ArrayList <LinkedHashMap<String, Object>>();
-			if (test_information.get("inputs") instanceof LinkedHashMap) {
-				LinkedHashMap<String, Object> aux = (LinkedHashMap<String, Object>) test_information.get("inputs");
-				input_information.add(aux);
-			} else if (test_information.get("inputs") instanceof List){
-				input_information = (List<LinkedHashMap<String, Object>>) test_information.get("inputs");
-			}
-			// Output test information
-			output_information = new ArrayList <LinkedHashMap<String, Object>>();
-			if (test_information.get("outputs") instanceof LinkedHashMap) {
-				LinkedHashMap<String, Object> aux = (LinkedHashMap<String, Object>) test_information.get("outputs");
-				output_information.add(aux);
-			} else if (test_information.get("outputs") instanceof List){
-				output_information = (List<LinkedHashMap<String, Object>>) test_information.get("outputs");
-			}
-			// Info about runtime and memory
-			memoryPeak = (String) test_information.get("memory_peak") + "";
-			runtime = (String) "" + test_information.get("runtime");
 		}		
 		
 		
@@ -531,7 +494,6 @@ public class Parameters {
 		inputList = new ArrayList<DijTensor>();
 		
 		
-		int tensorCounter = 0;
 		try {
 			for (Map<String, Object> inp : inputs) {
 				DijTensor inpTensor = new DijTensor((String) "" + inp.get("name"));
@@ -575,26 +537,6 @@ public class Parameters {
 					return;
 				}
 				
-				// Now find the test information of this tensor
-				if (input_information != null) {
-					LinkedHashMap<String, Object> info = input_information.get(tensorCounter ++);
-					try {
-						inpTensor.exampleInput = (String) "" + info.get("name");
-						inpTensor.inputTestSize =  (String) "" + info.get("size");
-						Map<String, Object>  pixel_size =  (Map<String, Object>) info.get("pixel_size");
-						inpTensor.inputPixelSizeX = (String) "" + pixel_size.get("x");
-						inpTensor.inputPixelSizeY = (String) "" + pixel_size.get("y");
-						inpTensor.inputPixelSizeZ = (String) "" + pixel_size.get("z");
-					} catch (Exception ex) {
-						inpTensor.exampleInput = (String) "";
-						inpTensor.inputTestSize =  (String) "";
-						Map<String, Object>  pixel_size =  (Map<String, Object>) info.get("pixel_size");
-						inpTensor.inputPixelSizeX = (String) "";
-						inpTensor.inputPixelSizeY = (String) "";
-						inpTensor.inputPixelSizeZ = (String) "";
-					}
-				}
-				
 				inputList.add(inpTensor);
 			}
 		} catch (Exception ex) {
@@ -676,6 +618,197 @@ public class Parameters {
 			return;
 		}
 		
+		name = name != null ? (String) name : "n/a";
+		format_version = format_version != null ? format_version : "n/a";
+		tag = (tag != null && !tag.contentEquals("")) ? tag : "serve";
+		graph = (graph != null && !graph.contentEquals("")) ? graph : "serving_default";
+		// The rest of the information is only read if the model is selected
+		completeConfig = true;
+		
+		
+	}
+	
+	/*
+	 * Read the information of the model that is not needed to list it: authors,
+	 * citations, attachments, test information, sample inputs and pre- and
+	 * post-processings. It is read the first time the model is selected or run,
+	 * so listing the models only keeps in memory what the model list needs.
+	 * The yaml file is read again from the {@link ModelIndex}
+	 */
+	public synchronized void loadDetails() {
+		if (detailsLoaded || developer || !completeConfig)
+			return;
+		detailsLoaded = true;
+		// Same file read by the constructor
+		File yamlFile = new File(path2Model, "rdf.yaml");
+		if (!yamlFile.isFile())
+			yamlFile = new File(path2Model, "model.yaml");
+		if (!yamlFile.isFile())
+			return;
+		try {
+			readDetails(ModelIndex.readConfig(yamlFile));
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			IJ.log("Unable to read some of the information of the model in the rdf.yaml of the following folder.\n"
+					+ " -" + path2Model);
+		}
+	}
+	
+	private void readDetails(Map<String, Object> obj) {
+		// Adapt to versions 0.3.2, 0.3.1 and 0.3.0 of the yaml file
+		// 0.3.2 provides a list of dictionaries
+		if (obj.get("authors") instanceof List &&  ((List<Object>) obj.get("authors")).get(0) instanceof HashMap) {
+			author = (List<HashMap<String, String>>) obj.get("authors");
+		// 0.3.0 and 0.3.1 provide a list of Strings
+		} else if (obj.get("authors") instanceof List &&  ((List<Object>) obj.get("authors")).get(0) instanceof String) {
+			List<String> auxList = (List<String>) obj.get("authors");
+			author = new ArrayList<HashMap<String, String>>();
+			for (String element : auxList) {
+				HashMap<String, String> auxMap = new HashMap<String, String>();
+				auxMap.put("name", element);
+				auxMap.put("affiliation", null);
+				auxMap.put("orcid", null);
+				author.add(auxMap);
+			}
+			
+		// Python Dij packager provides a String
+		} else if (obj.get("authors") instanceof String) {
+			String aux = "" + obj.get("authors");
+			HashMap<String, String> auxMap = new HashMap<String, String>();
+			auxMap.put("name", aux);
+			auxMap.put("affiliation", "");
+			auxMap.put("orcid", "");
+			author = new ArrayList<HashMap<String, String>>();
+			author.add(auxMap);
+		// If nothing is recognised
+		} else {
+			HashMap<String, String> auxMap = new HashMap<String, String>();
+			auxMap.put("name", "n/a");
+			auxMap.put("affiliation", "");
+			auxMap.put("orcid", "");
+			author = new ArrayList<HashMap<String, String>>();
+			author.add(auxMap);
+		}
+		
+		timestamp = "" +  obj.get("timestamp");
+
+		// Citation
+		Object citation = obj.get("cite");
+		if (citation instanceof List) {
+			cite = (List<HashMap<String, String>>) citation;
+		} else if (citation instanceof HashMap<?, ?>) {
+			cite = new ArrayList<HashMap<String, String>>();
+			cite.add((HashMap<String, String>) citation);
+		} else {
+			cite = new ArrayList<HashMap<String, String>>();
+			HashMap<String, String> c = new HashMap<String, String>();
+			c.put("text", "");
+			c.put("doi", "");
+			cite.add(c);
+		}
+		
+		documentation = (String) "" + obj.get("documentation");
+		license = (String) "" + obj.get("license");
+		git_repo = (String) "" + obj.get("git_repo");
+		
+		// Retrieve the Tensorflow and Pytorch attachments
+		LinkedHashMap<String, Object> weights = (LinkedHashMap<String, Object>) obj.get("weights");
+		HashMap<String, Object> tfMap = ((HashMap<String, Object>) weights.get("tensorflow_saved_model_bundle"));
+		if (tfMap != null) {
+			ArrayList<String> attachmentsAux = null;
+			if (tfMap.get("attachments") instanceof HashMap<?, ?>) {
+				HashMap<String, Object> attachmentsMap = (HashMap<String, Object>) tfMap.get("attachments");
+				if (attachmentsMap.get("files") instanceof ArrayList)
+					attachmentsAux = (ArrayList<String>) attachmentsMap.get("files");
+			}
+			
+			tfAttachments = new ArrayList<String>();
+			tfAttachmentsNotIncluded = new ArrayList<String>();
+			String defaultFlag = "Include here any plugin that might be required for pre- or post-processing";
+			if (attachmentsAux != null) {
+				for (String str : attachmentsAux) {
+					if (new File(path2Model, str).isFile() && !str.contentEquals(""))
+						tfAttachments.add(new File(path2Model, str).getAbsolutePath());
+					else if (!str.contentEquals(defaultFlag))
+						tfAttachmentsNotIncluded.add(str);
+				}
+			}
+		}
+		HashMap<String, Object> ptMap = ((HashMap<String, Object>) weights.get("pytorch_script"));
+		if (ptMap == null)
+			ptMap = ((HashMap<String, Object>) weights.get("torchscript"));
+		if (ptMap != null) {
+			ArrayList<String> attachmentsAux = null;
+			if (ptMap.get("attachments") instanceof HashMap<?, ?>) {
+				HashMap<String, Object> attachmentsMap = (HashMap<String, Object>) ptMap.get("attachments");
+				if (attachmentsMap.get("files") instanceof ArrayList)
+					attachmentsAux = (ArrayList<String>) attachmentsMap.get("files");
+			}
+			
+			ptAttachments = new ArrayList<String>();
+			ptAttachmentsNotIncluded = new ArrayList<String>();
+			String defaultFlag = "Include here any plugin that might be required for pre- or post-processing";
+			if (attachmentsAux != null) {
+				for (String str : attachmentsAux) {
+					if (new File(path2Model, str).isFile() && !str.contentEquals(""))
+						ptAttachments.add(new File(path2Model, str).getAbsolutePath());
+					else if (!str.contentEquals(defaultFlag))
+						ptAttachmentsNotIncluded.add(str);
+				}
+			}
+		}
+		
+		// Test information
+		Map<String, Object> config = (Map<String, Object>) obj.get("config");
+		Map<String, Object> deepimagej = (Map<String, Object>) config.get("deepimagej");
+		List<LinkedHashMap<String, Object>> input_information = null;
+		List<LinkedHashMap<String, Object>> output_information = null;
+		if (deepimagej != null && deepimagej.get("test_information") != null) {
+			Map<String, Object> test_information = (Map<String, Object>) deepimagej.get("test_information");
+
+			input_information = new ArrayList <LinkedHashMap<String, Object>>();
+			if (test_information.get("inputs") instanceof LinkedHashMap) {
+				LinkedHashMap<String, Object> aux = (LinkedHashMap<String, Object>) test_information.get("inputs");
+				input_information.add(aux);
+			} else if (test_information.get("inputs") instanceof List){
+				input_information = (List<LinkedHashMap<String, Object>>) test_information.get("inputs");
+			}
+			// Output test information
+			output_information = new ArrayList <LinkedHashMap<String, Object>>();
+			if (test_information.get("outputs") instanceof LinkedHashMap) {
+				LinkedHashMap<String, Object> aux = (LinkedHashMap<String, Object>) test_information.get("outputs");
+				output_information.add(aux);
+			} else if (test_information.get("outputs") instanceof List){
+				output_information = (List<LinkedHashMap<String, Object>>) test_information.get("outputs");
+			}
+			// Info about runtime and memory
+			memoryPeak = (String) test_information.get("memory_peak") + "";
+			runtime = (String) "" + test_information.get("runtime");
+		}
+		
+		// Now find the test information of every input
+		if (input_information != null) {
+			for (int i = 0; i < inputList.size() && i < input_information.size(); i ++) {
+				DijTensor inpTensor = inputList.get(i);
+				LinkedHashMap<String, Object> info = input_information.get(i);
+				try {
+					inpTensor.exampleInput = (String) "" + info.get("name");
+					inpTensor.inputTestSize =  (String) "" + info.get("size");
+					Map<String, Object>  pixel_size =  (Map<String, Object>) info.get("pixel_size");
+					inpTensor.inputPixelSizeX = (String) "" + pixel_size.get("x");
+					inpTensor.inputPixelSizeY = (String) "" + pixel_size.get("y");
+					inpTensor.inputPixelSizeZ = (String) "" + pixel_size.get("z");
+				} catch (Exception ex) {
+					inpTensor.exampleInput = (String) "";
+					inpTensor.inputTestSize =  (String) "";
+					Map<String, Object>  pixel_size =  (Map<String, Object>) info.get("pixel_size");
+					inpTensor.inputPixelSizeX = (String) "";
+					inpTensor.inputPixelSizeY = (String) "";
+					inpTensor.inputPixelSizeZ = (String) "";
+				}
+			}
+		}
+		
 		savedOutputs = new ArrayList<HashMap<String, String>>();
 		if (output_information != null) {
 			for (LinkedHashMap<String, Object> out : output_information) {
@@ -758,17 +891,10 @@ public class Parameters {
 		if (obj.get("sample_inputs") != null && obj.get("sample_inputs") instanceof List)
 			sampleInputs = castListToStringArray((List)obj.get("sample_inputs"));
 		
-		name = name != null ? (String) name : "n/a";
 		documentation = documentation != null ? documentation : "n/a";
-		format_version = format_version != null ? format_version : "n/a";
 		license = license != null ? license : "n/a";
 		memoryPeak = memoryPeak != null ? memoryPeak : "n/a";
 		runtime = runtime != null ?  runtime : "n/a";
-		tag = (tag != null && !tag.contentEquals("")) ? tag : "serve";
-		graph = (graph != null && !graph.contentEquals("")) ? graph : "serving_default";
-		completeConfig = true;
-		
-		
 	}
 	
 	/*
@@ -258,13 +258,22 @@ public class RunnerProgress extends JDialog implements ActionListener {
 		
 		processor.setText("Model Inference (GPU: " + gpuTag + ")");
 		if (runner != null && (runner instanceof RunnerTf))
-			patches.setText("Patches: " + ((RunnerTf) runner).getCurrentPatch() + "/" + ((RunnerTf) runner).getTotalPatch());
+			patches.setText("Patches: " + ((RunnerTf) runner).getCurrentPatch() + "/" + ((RunnerTf) runner).getTotalPatch()
+							+ skippedText(((RunnerTf) runner).getSkippedPatch()));
 		if (runner != null && (runner instanceof RunnerPt))
-			patches.setText("Patches: " + ((RunnerPt) runner).getCurrentPatch() + "/" + ((RunnerPt) runner).getTotalPatch());
+			patches.setText("Patches: " + ((RunnerPt) runner).getCurrentPatch() + "/" + ((RunnerPt) runner).getTotalPatch()
+							+ skippedText(((RunnerPt) runner).getSkippedPatch()));
 		
 		
 	}
 	
+	/*
+	 * Number of empty tiles that are not run through the model, if any
+	 */
+	private String skippedText(int skipped) {
+		return skipped == 0 ? "" : " (" + skipped + " empty)";
+	}
+	
 	/*
 	 * Get maximum memory used to run the model
 	 */
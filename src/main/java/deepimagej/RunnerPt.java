@@ -44,12 +44,17 @@
 
 package deepimagej;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.tensorflow.Tensor;
 
@@ -60,14 +65,25 @@ import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.types.Shape;
 import ai.djl.repository.zoo.ZooModel;
+import ai.djl.translate.TranslateException;
+import deepimagej.TileScheduler.TileResult;
 import deepimagej.exceptions.BatchSizeBiggerThanOne;
 import deepimagej.exceptions.IncorrectNumberOfDimensions;
 import deepimagej.tools.ArrayOperations;
+import deepimagej.tools.ChunkedOutput;
 import deepimagej.tools.CompactMirroring;
 import deepimagej.tools.DijTensor;
+import deepimagej.tools.EmptyTileFilter;
 import deepimagej.tools.Index;
 import deepimagej.tools.Log;
+import deepimagej.tools.MirroredImage;
 import deepimagej.tools.NumFormat;
+import deepimagej.tools.OutputDisplay;
+import deepimagej.tools.SystemUsage;
+import deepimagej.tools.Tile;
+import deepimagej.tools.TilePlanner;
+import deepimagej.tools.TileReduction;
+import deepimagej.tools.TileStitcher;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.measure.ResultsTable;
@@ -77,14 +93,50 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 	private HashMap<String,Object> 	inputMap;
 	private DeepImageJ				dp;
 	private RunnerProgress			rp;
+	// Keeps the Stop button disabled while any thread is running the model
+	private TileScheduler.StopGuard	stopGuard;
 	private Log						log;
 	private int						currentPatch = 0;
 	private int						totalPatch = 0;
+	// Number of frames of the image processed by the model
+	private int						nFrames = 1;
 	public String					error = "";
+	// Variables shared by all the tiles of the image
+	private ZooModel<NDList, NDList>	model;
+	private BlockingQueue<Predictor<NDList, NDList>> predictors;
+	// Manager of the whole run. Each batch of tiles uses a sub-manager that
+	// is closed once the batch has been converted into images
+	private NDManager				manager;
+	// Whether the model failed with a batch of several tiles
+	private volatile boolean		batchRejected = false;
+	// Resident memory of the process before processing the tiles
+	private long					residentMemory = -1;
+	private HashMap<String, Object>	parameterMap;
+	private MirroredImage			mirrorImage;
+	// Buffer where each thread writes the input tensor of its tiles
+	private ThreadLocal<ByteBuffer>	tileBuffer = new ThreadLocal<ByteBuffer>();
+	private int[]					patchSize;
+	private int[]					overlap;
+	private int[]					size;
+	private String[]				outputTitles;
+	private ImagePlus[]				outputImages;
+	private TileStitcher[]			stitchers;
+	// Refreshes the outputs outside of the tile loop
+	private OutputDisplay			display;
+	// Tiles that are not run through the model because their input is empty
+	private List<Tile>				skippedTiles = new ArrayList<Tile>();
+	// Dimensions of the output tiles of each output, used for the empty tiles
+	private int[][]					outputPatchDims;
+	// Data type of the tensors of each of the inputs of the model
+	private String[]				inputTypes;
+	// Bytes of each element of the tensor of the image tiles
+	private int						tileElementSize = 4;
+	private List<ResultsTable>		outputTables;
 
 	public RunnerPt(DeepImageJ dp, RunnerProgress rp,HashMap<String,Object> inputMap, Log log) {
 		this.dp = dp;
 		this.rp = rp;
+		this.stopGuard = new TileScheduler.StopGuard(rp);
 		this.log = log;
 		this.inputMap = inputMap;
 		log.print("constructor runner");
@@ -104,7 +156,7 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 
 		Parameters params = dp.params;
 		// Load the model first
-		ZooModel<NDList, NDList> model = dp.getTorchModel();
+		model = dp.getTorchModel();
 		if (log.getLevel() >= 1)
 			log.print("model " + (model == null));
 		
@@ -112,7 +164,7 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 			// TODO what to do with input parameters for torch models
 		}
 		// Map that contains the input tensors that are not images.
-        HashMap<String, Object> parameterMap = new HashMap<String, Object>(); 
+        parameterMap = new HashMap<String, Object>(); 
 		ImagePlus imp = null;
 		// Auxiliary array with the same number of images as output tensors
 		int c = 0;
@@ -161,8 +213,11 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 			if (tensor.tensorType.contains("image"))
 				outputImagesCount ++;
 		}
-		ImagePlus[] outputImages = new ImagePlus[outputImagesCount];
-		List<ResultsTable> outputTables = new ArrayList<ResultsTable>();
+		outputImages = new ImagePlus[outputImagesCount];
+		stitchers = new TileStitcher[outputImagesCount];
+		display = new OutputDisplay();
+		outputPatchDims = new int[params.outputList.size()][];
+		outputTables = new ArrayList<ResultsTable>();
 		
 		if (imp == null) {
 			// TODO maybe we should allow running models without images
@@ -174,6 +229,11 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 		int ny = imp.getHeight();
 		int nc = imp.getNChannels();
 		int nz = imp.getNSlices();
+		// The frames of a time-lapse are divided in the same tiles, that are processed as
+		// any other tile. Models that need the whole image only process the first frame
+		nFrames = params.allowPatching && !params.pyramidalNetwork ? imp.getNFrames() : 1;
+		if (imp.getNFrames() > nFrames)
+			IJ.log("This model only processes the first frame of the image.");
 		
 		if (log.getLevel() >= 1)
 			log.print("image size " + nx + "x" + ny + "x" + nz);
@@ -184,7 +244,7 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 		for  (int i = 0; i < dimLetters.length; i ++)
 			indices[i] = params.inputList.get(inputImageInd).form.indexOf(dimLetters[i]);
 
-		int[] patchSize = {1, 1, 1, 1};
+		patchSize = new int[] {1, 1, 1, 1};
 		int[] step = {1, 1, 1, 1};
 		int[] minSize = {1, 1, 1, 1};
 		for (int i = 0; i < indices.length; i ++) {
@@ -225,9 +285,8 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 		// To define the runtime for config.xml. Starting time
 		long startingTime = System.nanoTime();
 		// Create the image that is going to be fed to the graph
-		ImagePlus[] impatch = new ImagePlus[outputImages.length];
 		
-		String[] outputTitles = new String[params.outputList.size()];
+		outputTitles = new String[params.outputList.size()];
 		// Reset the counter to 0 use it again
 		c = 0;
 		int extensionInd = imp.getTitle().lastIndexOf('.');
@@ -265,18 +324,26 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 			npx = 1; npy = 1; npz = 1; npc = 1;
 		}
 		currentPatch = 0;
-		totalPatch = npx * npy * npz * npc;
+		totalPatch = npx * npy * npz * npc * nFrames;
 
 		int[] roi = {roiX, roiY, roiC, roiZ};
-		int[] size = {nx, ny, nc, nz};
+		size = new int[] {nx, ny, nc, nz};
 		int[][] mirrorPixels = ArrayOperations.findAddedPixels(size, padding, roi);
-		ImagePlus mirrorImage = CompactMirroring.mirrorXY(imp, mirrorPixels[0][0], mirrorPixels[1][0],
+		// The mirrored borders are read from the original image when the tiles are extracted
+		mirrorImage = new MirroredImage(imp, mirrorPixels[0][0], mirrorPixels[1][0],
 														  	   mirrorPixels[0][1], mirrorPixels[1][1],
 														       mirrorPixels[0][3], mirrorPixels[1][3]);
+		// The pixels of the image are given in the data type of the model input when they
+		// do not need to be converted to float
+		inputTypes = new String[params.inputList.size()];
+		for (int i = 0; i < inputTypes.length; i ++)
+			inputTypes[i] = ImagePlus2Tensor.findTensorType(imp, params.inputList.get(i).dataType);
+		tileElementSize = ImagePlus2Tensor.getElementSize(inputTypes[DijTensor.getImageTensorInd(params.inputList)]);
 		if (log.getLevel() == 2) {
-			mirrorImage.setTitle("Extended image");
-			mirrorImage.getProcessor().resetMinAndMax();
-			mirrorImage.show();
+			ImagePlus extended = CompactMirroring.mirrorXY(mirrorImage);
+			extended.setTitle("Extended image");
+			extended.getProcessor().resetMinAndMax();
+			extended.show();
 		}
 		
 		// If the roi of the patch is bigger than the actual image wanted, consider all the
@@ -306,276 +373,121 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 		if (log.getLevel() >= 1)
 			log.print("start " + npx + "x" + npy);
 
-		NDList inputTensors = new NDList();
-		for (int i = 0; i < npx; i++) {
-			for (int j = 0; j < npy; j++) {
-				for (int z = 0; z < npz; z++) {
-					// TODO reduce this mega big loop to something more modular
-					currentPatch++;
-					System.out.println("[DEBUG] (Pytorch) Patch " + currentPatch + "/" + totalPatch);
-					if (log.getLevel() >= 1)
-						log.print("currentPatch " + currentPatch);
-					if (rp != null && rp.isStopped()) {
-						rp.stop();
-						return null;
-					}
-					// Variables to track when the roi starts in the mirror image
-					int xMirrorStartPatch;
-					int yMirrorStartPatch;
-					int zMirrorStartPatch;
-					
-					// Variables to track when the roi starts in the patch
-					int xImageStartPatch;
-					int xImageEndPatch;
-					int yImageStartPatch;
-					int yImageEndPatch;
-					int zImageStartPatch;
-					int zImageEndPatch;
-					int leftoverPixelsX;
-					int leftoverPixelsY;
-					int leftoverPixelsZ;
-					if (i < npx -1 || npx == 1) {
-						xMirrorStartPatch = padding[0] + roiX*i;
-	
-						xImageStartPatch = roiX*i;
-						xImageEndPatch = roiX*(i + 1);
-						leftoverPixelsX = overlapX;
-					} else {
-						xMirrorStartPatch = nx + padding[0] - roiX;
-	
-						xImageStartPatch = roiX*i;
-						xImageEndPatch = nx;
-						leftoverPixelsX = overlapX + roiX - (xImageEndPatch - xImageStartPatch);
-					}
-					
-					if (j < npy - 1 || npy == 1) {
-						yMirrorStartPatch = padding[1] + roiY*j;
-	
-						yImageStartPatch = roiY*j;
-						yImageEndPatch = roiY*(j + 1);
-						leftoverPixelsY = overlapY;
-					} else {
-						yMirrorStartPatch = ny + padding[1] - roiY;
-	
-						yImageStartPatch = roiY*j;
-						yImageEndPatch = ny;
-						leftoverPixelsY = overlapY + roiY - (yImageEndPatch - yImageStartPatch);
-					}
-					
-					if (z < npz - 1 || npz == 1) {
-						zMirrorStartPatch = padding[3] + roiZ*z;
-	
-						zImageStartPatch = roiZ*z;
-						zImageEndPatch = roiZ*(z + 1);
-						leftoverPixelsZ = overlapZ;
-					} else {
-						zMirrorStartPatch = nz + padding[3] - roiZ;
-	
-						zImageStartPatch = roiZ*z;
-						zImageEndPatch = nz;
-						leftoverPixelsZ = overlapZ + roiZ- (zImageEndPatch - zImageStartPatch);
-					}
-					
-					ImagePlus patch = ArrayOperations.extractPatch(mirrorImage, patchSize, xMirrorStartPatch, yMirrorStartPatch,
-																	zMirrorStartPatch, overlapX, overlapY, overlapZ);
-					if (log.getLevel() >= 1)
-						log.print("Extract Patch (" + (i + 1) + ", " + (j + 1) + ") patch size: " + patch.getWidth() + "x" + patch.getHeight() + " pixels");
-					if (log.getLevel() == 2) {
-						patch.setTitle("Patch (" + i + "," + j + ")");
-						patch.getProcessor().resetMinAndMax();
-					}
-
-					// TODO optimise (take the try out of the loop) 
-					try (NDManager manager = NDManager.newBaseManager()) {
-						inputTensors = getInputTensors(manager, inputTensors, params.inputList, parameterMap,
-														patch, params.pytorchVersion);
-						// TODO make easier to understand
-						if (inputTensors == null) {
-							error = "Error retrieving inputs to tensors for the model.";
-							IJ.error(error);
-							return null;
-						}
-
-						// The thread cannot be stopped while loading a model, thus block the button
-						// while executing the task
-						if (rp != null)
-							rp.allowStopping(false);
-						Predictor<NDList, NDList> predictor = model.newPredictor();
-						NDList outputTensors = predictor.predict(inputTensors);
-						// Close inputTensors to avoid memory leak
-						inputTensors.close();
-						if (rp != null)
-							rp.allowStopping(true);
-						// Check if the user has tried to stop the execution while loading the model
-						// If they have return false and stop
-						if(rp != null && rp.isStopped())
-							return null;
-						
-						c = 0;
-						int imCounter = 0;
-						for (DijTensor outTensor : params.outputList) {
-							if (log.getLevel() >= 1)
-								log.print("Session run " + (c+1) + "/"  + params.outputList.size());
-							NDArray result = outputTensors.get(c);
-							if (outTensor.tensorType.contains("image") && !params.pyramidalNetwork) {
-								impatch[imCounter] = ImagePlus2Tensor.NDArray2ImagePlus(result, outTensor.form, outTensor.name, params.pytorchVersion);
-								imCounter ++;
-								c ++;
-							} else if (outTensor.tensorType.contains("image") && (params.pyramidalNetwork || !params.allowPatching)) {
-								outputImages[imCounter] = ImagePlus2Tensor.NDArray2ImagePlus(result, outTensor.form, outTensor.name, params.pytorchVersion);
-								outputImages[imCounter].setTitle(outputTitles[imCounter]);
-								outputImages[imCounter].show();
-								imCounter ++;
-								c ++;
-							} else if (outTensor.tensorType.contains("list")){
-								ResultsTable table = Table2Tensor.tensorToTable(result, outTensor.form, outTensor.name, params.pytorchVersion);
-								outputTables.add(table);
-								table.show(outputTitles[c ++]);
-							}
-							// Check if the user has tried to stop the execution while loading the model
-							// If they have return false and stop
-							if (rp != null && rp.isStopped()) {
-								outputTensors.close();
-								manager.close();
-								return null;
-							}
-						}
-						outputTensors.close();
-						manager.close();
-					} catch (IncorrectNumberOfDimensions ex) {
-						ex.printStackTrace();	
-						
-						error = "The dimensions specified for the '" + ex.getName() 
-						+ "' (" + ex.getDims() + ") should match the number of dimensions"
-						+ " output tensor " + Arrays.toString(ex.getShape());
-						error += "\n";
-						error += dimensionsMismatch(ex.getMessage());
-						IJ.log("Error applying the model");
-						IJ.log(error);
-						commentAboutPytorchVersions();
-						return null;
-					} catch(BatchSizeBiggerThanOne ex) {
-						ex.printStackTrace();	
-						error = "Output batch size bigger than 1 for tensor '" + ex.getName() + "'.\n Batch_size > 1 not supported by this version of DeepImageJ";
-						IJ.log("Error applying the model");
-						IJ.log(error);
-						IJ.log(ex.toString());
-						IJ.log("\n");
-						commentAboutPytorchVersions();
-						return null;
-					} catch (EngineException ex) {
-						ex.printStackTrace();	
-						error = dimensionsMismatch(ex.getMessage());
-						IJ.log("Error applying the model");
-						IJ.log("Check that the specifications for the input are compatible with the model architecture.");
-						IJ.log(error);
-						commentAboutPytorchVersions();
-						return null;
-					} catch (Exception ex) {
-						ex.printStackTrace();	
-						error = dimensionsMismatch(ex.getMessage());
-						IJ.log("Error applying the model");
-						IJ.log(error);
-						commentAboutPytorchVersions();
-						return null;
-					}
-					float[][] allOffsets = findOutputOffset(params.outputList);
-					int imCounter = 0;
-					for (int counter = 0; counter < params.outputList.size(); counter++) {
-						// TODO decide what to do when pyramidal && !allowPatching
-						if (params.outputList.get(counter).tensorType.contains("image") && !params.pyramidalNetwork && params.allowPatching) {
-							float[] outSize = findOutputSize(size, params.outputList.get(counter), params.inputList, impatch[imCounter].getDimensions());
-							if (outputImages[imCounter] == null) {
-								int[] dims = impatch[imCounter].getDimensions();
-								outputImages[imCounter] = IJ.createHyperStack(outputTitles[imCounter], (int)outSize[0], (int)outSize[1], (int)outSize[2], (int)outSize[3], dims[4], 32);
-								outputImages[imCounter].getProcessor().resetMinAndMax();
-								outputImages[imCounter].show();
-							}
-							float scaleX = outSize[0] / nx; float scaleY = outSize[1] / ny; float scaleZ = outSize[3] / nz;
-							ArrayOperations.imagePlusReconstructor(outputImages[imCounter], impatch[imCounter], (int) (xImageStartPatch * scaleX),
-									(int) (xImageEndPatch * scaleX), (int) (yImageStartPatch * scaleY), (int) (yImageEndPatch * scaleY),
-									(int) (zImageStartPatch * scaleZ), (int) (zImageEndPatch * scaleZ),(int)(leftoverPixelsX * scaleX + Math.ceil(allOffsets[imCounter][0])),
-									(int)(leftoverPixelsY * scaleY + Math.ceil(allOffsets[imCounter][1])), (int)(leftoverPixelsZ * scaleZ + Math.ceil(allOffsets[imCounter][3])));
-							if (outputImages[imCounter] != null)
-								outputImages[imCounter].getProcessor().resetMinAndMax();
-							if (rp != null && rp.isStopped()) {
-								rp.stop();
-								return null;
-							}
-							imCounter ++;
-						} else if (params.outputList.get(counter).tensorType.contains("image") && params.pyramidalNetwork) {
-							// TODO improve
-							int[] outPatchDims = outputImages[imCounter].getDimensions();
-							String[] ijForm = "XYCZB".split("");
-							String dijForm = params.outputList.get(counter).form;
-							int[] pyramidOut = params.outputList.get(counter).sizeOutputPyramid;
-							for (int dd = 0; dd < ijForm.length; dd ++) {
-								int idx = dijForm.indexOf(ijForm[dd]);
-								if (idx == -1 && outPatchDims[dd] == 1) {
-									continue;
-								} else if (idx != -1 && outPatchDims[dd] == pyramidOut[idx]) {
-									continue;
-								}
-								IJ.error("The dimensions of the output image do not coincide\n"
-										+ "with the dimensions specified previously:\n"
-										+ "Specified output dimensions: dimension order -> " + dijForm + ", dimension size -> " + Arrays.toString(pyramidOut) 
-										+ "Actual output dimensions: dimension order -> XYCZB, dimension size -> " + Arrays.toString(outPatchDims));
-								error = "Error specifying output dimensions.";
-								return null;
-							}
-							if (rp != null && rp.isStopped()) {
-								rp.stop();
-								return null;
-							}
-							imCounter ++;
-						} else if (params.outputList.get(counter).tensorType.contains("image") && !params.pyramidalNetwork && !params.allowPatching) {
-							// TODO improve
-							int[] outPatchDims = outputImages[imCounter].getDimensions();
-							String[] ijForm = "XYCZB".split("");
-							String dijForm = params.outputList.get(counter).form;
-							float[] scale = params.outputList.get(counter).scale;
-							float[] offset = params.outputList.get(counter).offset;
-							// TODO adapt for more inputs
-							// We take the mirrored image as the reference, because that is what ends
-							// up going into the model
-							int[] refSize = mirrorImage.getDimensions();
-							String thSizeStr = "[";
-							for (int dd = 0; dd < ijForm.length; dd ++) {
-								int idx = dijForm.indexOf(ijForm[dd]);
-								if (idx == -1 && outPatchDims[dd] == scale[idx]) {
-									thSizeStr += scale[idx] + ",";
-									continue;
-								} else if (idx != -1 && outPatchDims[dd] == (int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) {
-									thSizeStr += ((int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) + ",";
-									continue;
-								}
-								for (dd ++; dd < ijForm.length;) {
-									idx = dijForm.indexOf(ijForm[dd]);
-									if (idx == -1) {
-										thSizeStr += scale[idx] + ",";
-									} else if (idx != -1) {
-										thSizeStr += ((int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) + ",";
-									}
-								}
-								thSizeStr = thSizeStr.substring(0, thSizeStr.length() - 1) + "]";
-								IJ.error("The dimensions of the output image do not coincide\n"
-										+ "with the dimensions specified previously:\n"
-										+ "Specified output dimensions: dimension order -> XYCZB, dimension size -> " + thSizeStr 
-										+ "Actual output dimensions: dimension order -> XYCZB, dimension size -> " + Arrays.toString(outPatchDims));
-								error = "Error specifying output dimensions.";
-								return null;
-							}
-							if (rp != null && rp.isStopped()) {
-								rp.stop();
-								return null;
-							}
-							imCounter ++;
-						}
-					}
-					if (log.getLevel() >= 1)
-						log.print("Create Output ");
-				}
+		overlap = new int[] {overlapX, overlapY, 0, overlapZ};
+		List<Tile> tiles = Tile.createTiles(size, new int[] {roiX, roiY, roiC, roiZ}, new int[] {npx, npy, npc, npz},
+											padding, overlap, nFrames);
+		// Tiles whose input is empty are not run through the model. Their outputs are
+		// filled with a constant value once the rest of the tiles have been processed
+		skippedTiles = new ArrayList<Tile>();
+		if (params.skipStatistic != null && params.allowPatching && !params.pyramidalNetwork
+				&& DijTensor.getImageTensors(params.outputList).size() == params.outputList.size()) {
+			List<Tile> nonEmpty = new ArrayList<Tile>();
+			for (Tile tile : tiles) {
+				if (EmptyTileFilter.isEmpty(imp, tile, params.skipStatistic, params.skipThreshold))
+					skippedTiles.add(tile);
+				else
+					nonEmpty.add(tile);
 			}
+			// At least one tile is run to know the size of its outputs
+			if (nonEmpty.isEmpty())
+				nonEmpty.add(skippedTiles.remove(0));
+			tiles = nonEmpty;
+		} else if (params.skipStatistic != null) {
+			IJ.log("Empty tiles can only be skipped for models whose outputs are images processed by tiles.");
+		}
+		TileScheduler.TileProcessor processor = new TileScheduler.TileProcessor() {
+			@Override
+			public TileResult[] process(List<Tile> batch) throws Exception {
+				return processTiles(batch);
+			}
+			@Override
+			public boolean stitch(TileResult result) {
+				return stitchTile(result);
+			}
+		};
+		if (log.getLevel() >= 1 && params.tileConcurrency > 1)
+			log.print("processing " + params.tileConcurrency + " tiles at the same time");
+		// Group the tiles in the batch dimension if the model allows it
+		int batchSize = 1;
+		if (params.tileBatch != 1 && TileScheduler.allowsBatching(params)
+				&& !ImagePlus2Tensor.olderThanPytorch170(params.pytorchVersion)) {
+			batchSize = TileScheduler.findBatchSize(params.tileBatch, findTileMemory(), tiles.size(), params.tileConcurrency);
+			if (log.getLevel() >= 1)
+				log.print("running " + batchSize + " tiles per batch");
+		} else if (params.tileBatch != 1) {
+			IJ.log("The tiles cannot be grouped in batches for this model. They will be processed one by one.");
+		}
+		// A Predictor is not thread safe, create one for each of the tiles that
+		// can be processed at the same time
+		predictors = new LinkedBlockingQueue<Predictor<NDList, NDList>>();
+		for (int k = 0; k < Math.max(1, params.tileConcurrency); k ++)
+			predictors.add(model.newPredictor());
+		manager = NDManager.newBaseManager();
+		residentMemory = SystemUsage.getResidentMemory();
+		try {
+			if (!TileScheduler.run(tiles, processor, params.tileConcurrency, batchSize, rp)) {
+				if (rp != null && rp.isStopped())
+					rp.stop();
+				return null;
+			}
+			// Fill the outputs of the empty tiles
+			for (Tile tile : skippedTiles) {
+				TileResult result = new TileResult(tile, params.outputList.size());
+				for (int o = 0; o < result.outputs.length; o ++)
+					result.outputs[o] = EmptyTileFilter.createConstantPatch(params.outputList.get(o).name, outputPatchDims[o], params.skipFill);
+				if (!stitchTile(result))
+					return null;
+			}
+			if (!skippedTiles.isEmpty())
+				IJ.log("Skipped " + skippedTiles.size() + " empty tiles, " + tiles.size() + " tiles run through the model.");
+			// Normalize the blended outputs once all the tiles are in place
+			for (TileStitcher stitcher : stitchers) {
+				if (stitcher != null)
+					stitcher.finish();
+			}
+		} catch (IncorrectNumberOfDimensions ex) {
+			ex.printStackTrace();	
+			
+			error = "The dimensions specified for the '" + ex.getName() 
+			+ "' (" + ex.getDims() + ") should match the number of dimensions"
+			+ " output tensor " + Arrays.toString(ex.getShape());
+			error += "\n";
+			error += dimensionsMismatch(ex.getMessage());
+			IJ.log("Error applying the model");
+			IJ.log(error);
+			commentAboutPytorchVersions();
+			return null;
+		} catch(BatchSizeBiggerThanOne ex) {
+			ex.printStackTrace();	
+			error = "Output batch size bigger than 1 for tensor '" + ex.getName() + "'.\n Batch_size > 1 not supported by this version of DeepImageJ";
+			IJ.log("Error applying the model");
+			IJ.log(error);
+			IJ.log(ex.toString());
+			IJ.log("\n");
+			commentAboutPytorchVersions();
+			return null;
+		} catch (EngineException ex) {
+			ex.printStackTrace();	
+			error = dimensionsMismatch(ex.getMessage());
+			IJ.log("Error applying the model");
+			IJ.log("Check that the specifications for the input are compatible with the model architecture.");
+			IJ.log(error);
+			commentAboutPytorchVersions();
+			return null;
+		} catch (Exception ex) {
+			ex.printStackTrace();	
+			error = dimensionsMismatch(ex.getMessage());
+			IJ.log("Error applying the model");
+			IJ.log(error);
+			commentAboutPytorchVersions();
+			return null;
+		} finally {
+			for (Predictor<NDList, NDList> predictor : predictors)
+				predictor.close();
+			predictors.clear();
+			manager.close();
+			reportResidentMemory();
+			display.finish();
 		}
 		
 		// To define the runtime. End time
@@ -606,6 +518,294 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 		return outputMap;
 	}
 	
+	/*
+	 * Extract a batch of tiles from the mirrored image, run the model on them and
+	 * convert their outputs. Can be executed by several threads at the same time,
+	 * each of them using a different Predictor. If the model fails with a batch of
+	 * several tiles, they are run one at a time
+	 */
+	private TileResult[] processTiles(List<Tile> tiles) throws Exception {
+		if (tiles.size() > 1 && !batchRejected) {
+			try {
+				return processBatch(tiles);
+			} catch (TranslateException | EngineException ex) {
+				// The model does not accept several tiles in the batch dimension,
+				// process them one by one from now on
+				if (!batchRejected) {
+					batchRejected = true;
+					IJ.log("The model does not accept batches of tiles. The tiles will be processed one by one.");
+				}
+			}
+		}
+		if (tiles.size() == 1)
+			return processBatch(tiles);
+		TileResult[] results = new TileResult[tiles.size()];
+		for (int t = 0; t < tiles.size(); t ++) {
+			TileResult[] single = processBatch(tiles.subList(t, t + 1));
+			if (single == null)
+				return null;
+			results[t] = single[0];
+		}
+		return results;
+	}
+	
+	/*
+	 * Run the model once on the tiles given, grouped in the batch dimension
+	 */
+	private TileResult[] processBatch(List<Tile> tiles) throws Exception {
+		Parameters params = dp.params;
+		// Position of the first pixel of each tile in the mirrored image
+		int[][] origins = new int[tiles.size()][];
+		TileResult[] results = new TileResult[tiles.size()];
+		for (int t = 0; t < tiles.size(); t ++) {
+			Tile tile = tiles.get(t);
+			System.out.println("[DEBUG] (Pytorch) Patch " + tile.index + "/" + totalPatch);
+			if (log.getLevel() >= 1)
+				log.print("currentPatch " + tile.index);
+			if (rp != null && rp.isStopped())
+				return null;
+			// TODO mirar en profundidad. Que pasa cuando el mirror no es igual de grande que le patch
+			// Observe que se compensaba erroneamente
+			origins[t] = new int[] {tile.xMirrorStart - overlap[0], tile.yMirrorStart - overlap[1], tile.zMirrorStart - overlap[3], tile.t};
+			if (log.getLevel() >= 1)
+				log.print("Extract Patch (" + (tile.i + 1) + ", " + (tile.j + 1) + ") patch size: " + patchSize[0] + "x" + patchSize[1] + " pixels");
+			results[t] = new TileResult(tile, params.outputList.size());
+		}
+		// The tiles are copied directly from the mirrored image into the buffer of this thread
+		ByteBuffer buffer = ImagePlus2Tensor.reuseBuffer(tileBuffer.get(), 
+				(long) patchSize[0] * patchSize[1] * patchSize[2] * patchSize[3] * tiles.size(), tileElementSize);
+		tileBuffer.set(buffer);
+		
+		// Take one of the free predictors, it is given back once the batch is processed
+		Predictor<NDList, NDList> predictor = predictors.take();
+		NDManager tileManager = manager.newSubManager();
+		try {
+			NDList inputTensors = getInputTensors(tileManager, new NDList(), params.inputList, parameterMap,
+											mirrorImage, origins, patchSize, params.pytorchVersion, buffer, inputTypes);
+			// TODO make easier to understand
+			if (inputTensors == null) {
+				error = "Error retrieving inputs to tensors for the model.";
+				IJ.error(error);
+				return null;
+			}
+
+			// The thread cannot be stopped while loading a model, thus block the button
+			// while executing the task
+			NDList outputTensors;
+			stopGuard.enter();
+			try {
+				outputTensors = predictor.predict(inputTensors);
+			} finally {
+				stopGuard.exit();
+			}
+			// Free the outputs together with the inputs of the batch
+			outputTensors.attach(tileManager);
+			// Check if the user has tried to stop the execution while loading the model
+			// If they have return false and stop
+			if(rp != null && rp.isStopped())
+				return null;
+			
+			int c = 0;
+			for (DijTensor outTensor : params.outputList) {
+				if (log.getLevel() >= 1)
+					log.print("Session run " + (c+1) + "/"  + params.outputList.size());
+				NDArray output = outputTensors.get(c);
+				if (outTensor.tensorType.contains("image") && tiles.size() == 1) {
+					results[0].outputs[c] = ImagePlus2Tensor.NDArray2ImagePlus(output, outTensor.form, outTensor.name, params.pytorchVersion);
+				} else if (outTensor.tensorType.contains("image")) {
+					// Split the batch into the tiles that form it
+					ImagePlus[] outPatches = ImagePlus2Tensor.NDArray2ImagePlusBatch(output, outTensor.form, outTensor.name);
+					for (int t = 0; t < tiles.size(); t ++)
+						results[t].outputs[c] = outPatches[t];
+				} else if (outTensor.tensorType.contains("list")){
+					results[0].outputs[c] = Table2Tensor.tensorToTable(output, outTensor.form, outTensor.name, params.pytorchVersion);
+				}
+				c ++;
+				// Check if the user has tried to stop the execution while loading the model
+				// If they have return false and stop
+				if (rp != null && rp.isStopped())
+					return null;
+			}
+		} finally {
+			// The input and output tensors of the batch are closed with its manager. The
+			// parameter tensors given by the preprocessing are shared by all the tiles
+			tileManager.close();
+			predictors.put(predictor);
+		}
+		return results;
+	}
+	
+	/*
+	 * Report how much the resident memory of the process changed while processing the
+	 * tiles, once all the tensors have been released. The allocators of the engine and of
+	 * the JVM keep part of the memory for later use, so the difference is only informative
+	 */
+	private void reportResidentMemory() {
+		long after = SystemUsage.getResidentMemory();
+		if (residentMemory < 0 || after < 0 || log.getLevel() < 1)
+			return;
+		long growth = after - residentMemory;
+		log.print("resident memory after the tiles: " + (growth >= 0 ? "+" : "-") + NumFormat.bytes(Math.abs(growth)));
+	}
+	
+	/*
+	 * Bytes needed to run a single tile: the input and output tensors and the
+	 * activations of the model, estimated as in the {@link TilePlanner}
+	 */
+	private long findTileMemory() {
+		long bytes = 4L * patchSize[0] * patchSize[1] * patchSize[2] * patchSize[3] * (1 + TilePlanner.ACTIVATION_FACTOR);
+		for (DijTensor out : dp.params.outputList) {
+			float[] outSize = findOutputSize(patchSize, out, dp.params.inputList, patchSize);
+			bytes += 4L * (long) (outSize[0] * outSize[1] * outSize[2] * outSize[3]);
+		}
+		return bytes;
+	}
+	
+	/*
+	 * Insert the outputs of a tile into the output images, or show them if the
+	 * image is not processed by tiles
+	 */
+	private boolean stitchTile(TileResult result) {
+		Parameters params = dp.params;
+		Tile tile = result.tile;
+		currentPatch ++;
+		float[][] allOffsets = findOutputOffset(params.outputList);
+		int imCounter = 0;
+		for (int counter = 0; counter < params.outputList.size(); counter++) {
+			// TODO decide what to do when pyramidal && !allowPatching
+			if (params.outputList.get(counter).tensorType.contains("image") && !params.pyramidalNetwork && params.allowPatching) {
+				ImagePlus impatch = (ImagePlus) result.outputs[counter];
+				if (outputPatchDims[counter] == null)
+					outputPatchDims[counter] = impatch.getDimensions();
+				// Reduce the channels of the tile before stitching it, so the
+				// multichannel output is never created for the whole image
+				if (params.outputReduction != null)
+					impatch = TileReduction.apply(impatch, params.outputReduction, params.reductionThreshold);
+				float[] outSize = findOutputSize(size, params.outputList.get(counter), params.inputList, impatch.getDimensions());
+				if (params.outputReduction != null)
+					outSize[2] = impatch.getNChannels();
+				if (outputImages[imCounter] == null) {
+					if (params.outputChunks != null) {
+						// Write the output to disk tile by tile instead of keeping it in memory
+						try {
+							stitchers[imCounter] = new TileStitcher(new ChunkedOutput(new File(params.outputChunks, outputTitles[imCounter]), outputTitles[imCounter],
+																	(int)outSize[0], (int)outSize[1], (int)outSize[2], (int)outSize[3], nFrames));
+						} catch (IOException ex) {
+							ex.printStackTrace();
+							error = "Unable to create the output folder in " + params.outputChunks;
+							IJ.log(error);
+							return false;
+						}
+						outputImages[imCounter] = stitchers[imCounter].getImage();
+					} else {
+						outputImages[imCounter] = IJ.createHyperStack(outputTitles[imCounter], (int)outSize[0], (int)outSize[1], (int)outSize[2], (int)outSize[3], nFrames, params.outputBitDepth);
+						stitchers[imCounter] = new TileStitcher(outputImages[imCounter], params.tileBlending);
+						stitchers[imCounter].setRange(params.outputRange);
+						outputImages[imCounter].getProcessor().resetMinAndMax();
+					}
+					display.show(outputImages[imCounter]);
+				}
+				float scaleX = outSize[0] / size[0]; float scaleY = outSize[1] / size[1]; float scaleZ = outSize[3] / size[3];
+				boolean added = stitchers[imCounter].add(impatch, (int) (tile.xImageStart * scaleX),
+						(int) (tile.xImageEnd * scaleX), (int) (tile.yImageStart * scaleY), (int) (tile.yImageEnd * scaleY),
+						(int) (tile.zImageStart * scaleZ), (int) (tile.zImageEnd * scaleZ),(int)(tile.leftoverX * scaleX + Math.ceil(allOffsets[imCounter][0])),
+						(int)(tile.leftoverY * scaleY + Math.ceil(allOffsets[imCounter][1])), (int)(tile.leftoverZ * scaleZ + Math.ceil(allOffsets[imCounter][3])),
+						tile.t + 1);
+				if (!added) {
+					error = "Unable to write the output tiles to " + params.outputChunks;
+					IJ.log(error);
+					return false;
+				}
+				display.changed(outputImages[imCounter]);
+				if (rp != null && rp.isStopped()) {
+					rp.stop();
+					return false;
+				}
+				imCounter ++;
+			} else if (params.outputList.get(counter).tensorType.contains("image") && params.pyramidalNetwork) {
+				outputImages[imCounter] = (ImagePlus) result.outputs[counter];
+				outputImages[imCounter].setTitle(outputTitles[imCounter]);
+				outputImages[imCounter].show();
+				// TODO improve
+				int[] outPatchDims = outputImages[imCounter].getDimensions();
+				String[] ijForm = "XYCZB".split("");
+				String dijForm = params.outputList.get(counter).form;
+				int[] pyramidOut = params.outputList.get(counter).sizeOutputPyramid;
+				for (int dd = 0; dd < ijForm.length; dd ++) {
+					int idx = dijForm.indexOf(ijForm[dd]);
+					if (idx == -1 && outPatchDims[dd] == 1) {
+						continue;
+					} else if (idx != -1 && outPatchDims[dd] == pyramidOut[idx]) {
+						continue;
+					}
+					IJ.error("The dimensions of the output image do not coincide\n"
+							+ "with the dimensions specified previously:\n"
+							+ "Specified output dimensions: dimension order -> " + dijForm + ", dimension size -> " + Arrays.toString(pyramidOut) 
+							+ "Actual output dimensions: dimension order -> XYCZB, dimension size -> " + Arrays.toString(outPatchDims));
+					error = "Error specifying output dimensions.";
+					return false;
+				}
+				if (rp != null && rp.isStopped()) {
+					rp.stop();
+					return false;
+				}
+				imCounter ++;
+			} else if (params.outputList.get(counter).tensorType.contains("image") && !params.pyramidalNetwork && !params.allowPatching) {
+				outputImages[imCounter] = (ImagePlus) result.outputs[counter];
+				outputImages[imCounter].setTitle(outputTitles[imCounter]);
+				outputImages[imCounter].show();
+				// TODO improve
+				int[] outPatchDims = outputImages[imCounter].getDimensions();
+				String[] ijForm = "XYCZB".split("");
+				String dijForm = params.outputList.get(counter).form;
+				float[] scale = params.outputList.get(counter).scale;
+				float[] offset = params.outputList.get(counter).offset;
+				// TODO adapt for more inputs
+				// We take the mirrored image as the reference, because that is what ends
+				// up going into the model
+				int[] refSize = mirrorImage.getDimensions();
+				String thSizeStr = "[";
+				for (int dd = 0; dd < ijForm.length; dd ++) {
+					int idx = dijForm.indexOf(ijForm[dd]);
+					if (idx == -1 && outPatchDims[dd] == scale[idx]) {
+						thSizeStr += scale[idx] + ",";
+						continue;
+					} else if (idx != -1 && outPatchDims[dd] == (int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) {
+						thSizeStr += ((int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) + ",";
+						continue;
+					}
+					for (dd ++; dd < ijForm.length;) {
+						idx = dijForm.indexOf(ijForm[dd]);
+						if (idx == -1) {
+							thSizeStr += scale[idx] + ",";
+						} else if (idx != -1) {
+							thSizeStr += ((int)(refSize[dd] * scale[idx]) + 2 * offset[idx]) + ",";
+						}
+					}
+					thSizeStr = thSizeStr.substring(0, thSizeStr.length() - 1) + "]";
+					IJ.error("The dimensions of the output image do not coincide\n"
+							+ "with the dimensions specified previously:\n"
+							+ "Specified output dimensions: dimension order -> XYCZB, dimension size -> " + thSizeStr 
+							+ "Actual output dimensions: dimension order -> XYCZB, dimension size -> " + Arrays.toString(outPatchDims));
+					error = "Error specifying output dimensions.";
+					return false;
+				}
+				if (rp != null && rp.isStopped()) {
+					rp.stop();
+					return false;
+				}
+				imCounter ++;
+			} else if (params.outputList.get(counter).tensorType.contains("list")) {
+				ResultsTable table = (ResultsTable) result.outputs[counter];
+				outputTables.add(table);
+				display.showTable(table, outputTitles[counter]);
+			}
+		}
+		if (log.getLevel() >= 1)
+			log.print("Create Output ");
+		return true;
+	}
+	
 	private void commentAboutPytorchVersions() {
 		if (dp.params.pytorchVersion.contains("1.7."))
 			IJ.log("Note that in Pytorch >=1.7.0 the batch dimension has to be specified in the tensor dimensions organization.");
@@ -642,7 +842,8 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 	}
 	
 	private static NDList getInputTensors(NDManager manager, NDList tensorsArray, List<DijTensor> inputTensors, HashMap<String, Object> paramsMap,
-												ImagePlus im, String pytorchVersion){
+												MirroredImage im, int[][] origins, int[] patchSize, String pytorchVersion, ByteBuffer buffer,
+												String[] types){
 		tensorsArray = new NDList();
 		for (DijTensor tensor : inputTensors) {
 			if (tensor.tensorType.contains("parameter") && (paramsMap.get(tensor.name) instanceof NDArray)) {
@@ -663,7 +864,10 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 				}
 			} else if (tensor.tensorType.contains("image")) {
 				 try {
-					 NDArray tt = ImagePlus2Tensor.imPlus2tensor(manager, im, tensor.form, pytorchVersion);
+					 // DJL keeps using the buffer, so only the first image input is written in it
+					 NDArray tt = ImagePlus2Tensor.region2NDArray(im, origins, patchSize, tensor.form, manager, pytorchVersion, 
+														buffer, types[inputTensors.indexOf(tensor)]);
+					 buffer = null;
 					 tensorsArray.add(tt);
 				 } catch (Exception ex) {
 					 tensorsArray.close();
@@ -773,5 +977,9 @@ public class RunnerPt implements Callable<HashMap<String, Object>> {
 	public int getTotalPatch() {
 		return totalPatch;
 	}
+	
+	public int getSkippedPatch() {
+		return skippedTiles.size();
+	}
 
 }
@@ -0,0 +1,235 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.tensorflow.Graph;
+import org.tensorflow.Operation;
+import org.tensorflow.Output;
+import org.tensorflow.SavedModelBundle;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+import org.tensorflow.framework.SignatureDef;
+import org.tensorflow.framework.TensorInfo;
+import org.tensorflow.framework.TensorShapeProto;
+
+import deepimagej.tools.DijTensor;
+import deepimagej.tools.NumFormat;
+
+/*
+ * Inputs and outputs of a Tensorflow model resolved once per run. The names
+ * of the signature are looked up in the graph only when the plan is created,
+ * so running a tile only binds its tensors to the operations and calls the
+ * session. The plan can be used by several threads at the same time.
+ */
+public class TfExecutionPlan {
+	
+	private Session session;
+	private Output<?>[] feeds;
+	private Output<?>[] fetches;
+	// Shape of each input given by the signature, -1 for free dimensions
+	private long[][] inputShapes;
+	private String[] inputNames;
+	// Data type of each input and output given by the signature, as written
+	// in the rdf.yaml ('float32', 'uint8', 'int32'...)
+	private String[] inputTypes;
+	private String[] outputTypes;
+	// Batch size fixed by the signature, -1 if any batch size is accepted
+	private long batchSize = -1;
+	// Time spent binding the tensors and running the session, to measure
+	// the overhead added to each tile
+	private AtomicLong bindTime = new AtomicLong(0);
+	private AtomicLong runTime = new AtomicLong(0);
+	private AtomicLong nRuns = new AtomicLong(0);
+	
+	/*
+	 * Resolve the operations of the inputs and outputs of the signature
+	 * @param model: loaded model
+	 * @param sig: signature used to run the model
+	 * @param inputs: inputs of the model, in the order in which the tensors are given
+	 * @param outputs: outputs of the model, in the order in which they are fetched
+	 */
+	public TfExecutionPlan(SavedModelBundle model, SignatureDef sig, List<DijTensor> inputs, List<DijTensor> outputs) {
+		Graph graph = model.graph();
+		session = model.session();
+		feeds = new Output<?>[inputs.size()];
+		inputShapes = new long[inputs.size()][];
+		inputNames = new String[inputs.size()];
+		inputTypes = new String[inputs.size()];
+		for (int k = 0; k < inputs.size(); k ++) {
+			TensorInfo info = sig.getInputsOrThrow(inputs.get(k).name);
+			feeds[k] = resolve(graph, info);
+			inputShapes[k] = getShape(info.getTensorShape());
+			inputNames[k] = inputs.get(k).name;
+			inputTypes[k] = getType(info);
+			int b = inputs.get(k).form.indexOf("B");
+			if (b != -1 && inputShapes[k] != null && b < inputShapes[k].length && inputShapes[k][b] != -1)
+				batchSize = batchSize == -1 ? inputShapes[k][b] : Math.min(batchSize, inputShapes[k][b]);
+		}
+		fetches = new Output<?>[outputs.size()];
+		outputTypes = new String[outputs.size()];
+		for (int k = 0; k < outputs.size(); k ++) {
+			TensorInfo info = sig.getOutputsOrThrow(outputs.get(k).name);
+			fetches[k] = resolve(graph, info);
+			outputTypes[k] = getType(info);
+		}
+	}
+	
+	/*
+	 * Run the model on the tensors given
+	 * @param inputTensors: one tensor for each input, in the same order as when
+	 * the plan was created
+	 * @return one tensor for each output. The caller has to close them
+	 */
+	public List<Tensor<?>> run(Tensor<?>[] inputTensors) {
+		long start = System.nanoTime();
+		Session.Runner runner = session.runner();
+		for (int k = 0; k < feeds.length; k ++) {
+			checkShape(k, inputTensors[k]);
+			runner.feed(feeds[k], inputTensors[k]);
+		}
+		for (Output<?> fetch : fetches)
+			runner.fetch(fetch);
+		long bound = System.nanoTime();
+		List<Tensor<?>> outputs = runner.run();
+		runTime.addAndGet(System.nanoTime() - bound);
+		bindTime.addAndGet(bound - start);
+		nRuns.incrementAndGet();
+		return outputs;
+	}
+	
+	/*
+	 * Batch size of the inputs of the signature, -1 if it is not fixed
+	 */
+	public long getBatchSize() {
+		return batchSize;
+	}
+	
+	/*
+	 * Data type of the input in the position given, in the order in which
+	 * the plan was created
+	 */
+	public String getInputType(int k) {
+		return inputTypes[k];
+	}
+	
+	/*
+	 * Data type of the output in the position given, in the order in which
+	 * the plan was created
+	 */
+	public String getOutputType(int k) {
+		return outputTypes[k];
+	}
+	
+	/*
+	 * Summary of the time spent per call to the model
+	 */
+	public String getTimes() {
+		long n = Math.max(1, nRuns.get());
+		return nRuns.get() + " model calls, binding tensors: " + NumFormat.time(bindTime.get() / (double) n) 
+				+ " per call, running the session: " + NumFormat.time(runTime.get() / (double) n) + " per call";
+	}
+	
+	/*
+	 * Find the output of the operation with the name given by the signature,
+	 * of the form 'operation:index'
+	 */
+	private static Output<?> resolve(Graph graph, TensorInfo info) {
+		String name = info.getName();
+		int index = 0;
+		if (name.lastIndexOf(":") != -1) {
+			index = Integer.parseInt(name.substring(name.lastIndexOf(":") + 1));
+			name = name.substring(0, name.lastIndexOf(":"));
+		}
+		Operation op = graph.operation(name);
+		if (op == null)
+			throw new IllegalArgumentException("Operation '" + name + "' not found in the model graph");
+		return op.output(index);
+	}
+	
+	private static String getType(TensorInfo info) {
+		switch (info.getDtype()) {
+			case DT_FLOAT:
+				return "float32";
+			case DT_UINT8:
+				return "uint8";
+			case DT_INT32:
+				return "int32";
+			case DT_UINT16:
+				return "uint16";
+			default:
+				return info.getDtype().name().substring(3).toLowerCase();
+		}
+	}
+	
+	private static long[] getShape(TensorShapeProto shape) {
+		if (shape.getUnknownRank())
+			return null;
+		long[] dims = new long[shape.getDimCount()];
+		for (int i = 0; i < dims.length; i ++)
+			dims[i] = shape.getDim(i).getSize();
+		return dims;
+	}
+	
+	/*
+	 * Check that the tensor fits the shape of the signature, to give a clear error
+	 * instead of the one of the native library
+	 */
+	private void checkShape(int k, Tensor<?> tensor) {
+		long[] expected = inputShapes[k];
+		if (expected == null)
+			return;
+		long[] shape = tensor.shape();
+		boolean matches = shape.length == expected.length;
+		for (int i = 0; matches && i < shape.length; i ++)
+			matches = expected[i] == -1 || expected[i] == shape[i];
+		if (!matches)
+			throw new IllegalArgumentException("The shape of the input '" + inputNames[k] + "' " + Arrays.toString(shape) 
+						+ " does not match the shape required by the model " + Arrays.toString(expected));
+	}
+}
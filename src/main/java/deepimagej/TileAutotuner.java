@@ -0,0 +1,316 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import deepimagej.tools.ArrayOperations;
+import deepimagej.tools.DijTensor;
+import deepimagej.tools.Log;
+import deepimagej.tools.TilePlanner;
+import deepimagej.tools.TileStitcher;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/*
+ * Finds the tile size that processes images the fastest with a model on this machine.
+ * A few tile sizes allowed by the model, from the one chosen by the {@link TilePlanner}
+ * down to a quarter of it along each axis, are run on a synthetic image of exactly one
+ * tile, and the one that processes more pixels per second is returned.
+ * The result is kept in a profile file in the model folder, with one entry per
+ * framework, device, machine and planned tile, so it is only measured once.
+ */
+public class TileAutotuner implements Callable<String> {
+	
+	public static final String PROFILE_FILE = "tile_profile.properties";
+	// Fractions of the size of the planned tile that are tried along each axis
+	private static final double[] SCALES = {1, 0.75, 0.5, 0.35, 0.25};
+	// Times each tile size is run. The first run also includes the warm up of the model,
+	// so the fastest one is kept
+	private static final int REPETITIONS = 2;
+	
+	private DeepImageJ dp;
+	private TilePlanner.Plan plan;
+	private Log log;
+	
+	/*
+	 * @param dp: model, already loaded
+	 * @param plan: biggest tile size that fits in memory for the image to process
+	 * @param log: log of the plugin
+	 */
+	public TileAutotuner(DeepImageJ dp, TilePlanner.Plan plan, Log log) {
+		this.dp = dp;
+		this.plan = plan;
+		this.log = log;
+	}
+	
+	/*
+	 * Key of the profile of the model for the framework and device used, this machine
+	 * and the planned tile. The candidates are never bigger than the planned tile, so the
+	 * size tuned for a small image is not reused for bigger images. The framework has
+	 * to be set in the parameters before calling this method
+	 */
+	public static String getProfileKey(DeepImageJ dp, boolean gpu, TilePlanner.Plan plan) {
+		String host = "localhost";
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+		}
+		return dp.params.framework + "." + (gpu ? "gpu" : "cpu") + "." + host + "." + plan.getPatchString();
+	}
+	
+	/*
+	 * Tile size saved in the profile of the model, null if it has not been tuned yet
+	 */
+	public static String readProfile(DeepImageJ dp, String key) {
+		Properties profile = loadProfile(dp);
+		return profile.getProperty(key);
+	}
+	
+	/*
+	 * Save the tile size in the profile of the model
+	 */
+	public static void writeProfile(DeepImageJ dp, String key, String patch) {
+		Properties profile = loadProfile(dp);
+		profile.setProperty(key, patch);
+		try (OutputStream os = new FileOutputStream(new File(dp.getPath(), PROFILE_FILE))) {
+			profile.store(os, "DeepImageJ tile sizes tuned for this model");
+		} catch (IOException e) {
+			IJ.log("Unable to save the tuned tile size in the model folder: " + e.getMessage());
+		}
+	}
+	
+	private static Properties loadProfile(DeepImageJ dp) {
+		Properties profile = new Properties();
+		File file = new File(dp.getPath(), PROFILE_FILE);
+		if (file.isFile()) {
+			try (InputStream is = new FileInputStream(file)) {
+				profile.load(is);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return profile;
+	}
+	
+	/*
+	 * Run the benchmark. Returns the fastest tile size in the format of the 'tile'
+	 * argument of DeepImageJ Run, or null if none of them could be run
+	 */
+	@Override
+	public String call() {
+		if (dp.params.inputList.size() != 1) {
+			IJ.log("The tile size can only be tuned for models with one input.");
+			return null;
+		}
+		DijTensor input = dp.params.inputList.get(0);
+		int[] min = DijTensor.getWorkingDimValues(input.form, input.minimum_size);
+		int[] step = DijTensor.getWorkingDimValues(input.form, input.step);
+		// The options that change how the outputs are written do not affect the speed of the
+		// model, and the benchmark must not write chunks, skip tiles or reduce its outputs
+		int[] savedPatch = input.recommended_patch;
+		String savedChunks = dp.params.outputChunks;
+		String savedStatistic = dp.params.skipStatistic;
+		String savedReduction = dp.params.outputReduction;
+		String savedBlending = dp.params.tileBlending;
+		int savedBitDepth = dp.params.outputBitDepth;
+		double[] savedRange = dp.params.outputRange;
+		dp.params.outputChunks = null;
+		dp.params.skipStatistic = null;
+		dp.params.outputReduction = null;
+		dp.params.tileBlending = TileStitcher.NONE;
+		dp.params.outputBitDepth = 32;
+		dp.params.outputRange = null;
+		// The outputs of the benchmark are not shown
+		Log quiet = new Log();
+		quiet.setLevel(0);
+		
+		String best = null;
+		double bestRate = 0;
+		try {
+			for (int[] patch : getCandidates(min, step)) {
+				String patchString = toPatchString(patch);
+				ImagePlus imp = createSyntheticImage(patch);
+				HashMap<String, Object> inputMap = new HashMap<String, Object>();
+				inputMap.put(input.name, imp);
+				input.recommended_patch = ArrayOperations.getPatchSize(plan.dims, input.form, patchString, false);
+				long time = Long.MAX_VALUE;
+				for (int r = 0; r < REPETITIONS; r ++) {
+					long start = System.nanoTime();
+					HashMap<String, Object> output = null;
+					try {
+						Callable<HashMap<String, Object>> runner = dp.params.framework.equals("tensorflow") ? 
+								new RunnerTf(dp, null, inputMap, quiet) : new RunnerPt(dp, null, inputMap, quiet);
+						output = runner.call();
+					} catch (Exception | OutOfMemoryError ex) {
+						ex.printStackTrace();
+					}
+					if (output == null) {
+						time = Long.MAX_VALUE;
+						break;
+					}
+					time = Math.min(time, System.nanoTime() - start);
+					closeOutputs(output);
+				}
+				imp.close();
+				if (time == Long.MAX_VALUE) {
+					if (log.getLevel() >= 1)
+						log.print("tile " + patchString + " could not be run");
+					continue;
+				}
+				// Only the pixels outside the halo are useful
+				double rate = getValidPixels(patch) / (time * 1e-9);
+				if (log.getLevel() >= 1)
+					log.print("tile " + patchString + ": " + String.format("%.0f", rate) + " pixels/s");
+				if (rate > bestRate) {
+					bestRate = rate;
+					best = patchString;
+				}
+			}
+		} finally {
+			input.recommended_patch = savedPatch;
+			dp.params.outputChunks = savedChunks;
+			dp.params.skipStatistic = savedStatistic;
+			dp.params.outputReduction = savedReduction;
+			dp.params.tileBlending = savedBlending;
+			dp.params.outputBitDepth = savedBitDepth;
+			dp.params.outputRange = savedRange;
+		}
+		if (best != null)
+			IJ.log("Tuned tile size: " + best + " (" + String.format("%.0f", bestRate) + " pixels/s)");
+		return best;
+	}
+	
+	/*
+	 * Tile sizes allowed by the model that are a fraction of the planned one
+	 */
+	private List<int[]> getCandidates(int[] min, int[] step) {
+		List<int[]> candidates = new ArrayList<int[]>();
+		for (double scale : SCALES) {
+			int[] patch = new int[plan.patch.length];
+			for (int i = 0; i < patch.length; i ++) {
+				patch[i] = plan.patch[i];
+				if (step[i] == 0 || plan.dims[i].equals("C"))
+					continue;
+				int target = Math.max(min[i], (int) (plan.patch[i] * scale));
+				patch[i] = min[i] + ((target - min[i]) / step[i]) * step[i];
+				// The tiles have to be bigger than their halo
+				while (patch[i] <= 2 * plan.halo[i])
+					patch[i] += step[i];
+			}
+			boolean repeated = false;
+			for (int[] c : candidates)
+				repeated = repeated || Arrays.equals(c, patch);
+			if (!repeated)
+				candidates.add(patch);
+		}
+		return candidates;
+	}
+	
+	/*
+	 * Image filled with noise whose size is the valid region of one tile, so it is
+	 * processed with a single tile
+	 */
+	private ImagePlus createSyntheticImage(int[] patch) {
+		int[] size = new int[] {1, 1, 1, 1};
+		String axes = "XYCZ";
+		for (int i = 0; i < plan.dims.length; i ++) {
+			int ind = axes.indexOf(plan.dims[i]);
+			if (ind == -1)
+				continue;
+			size[ind] = plan.dims[i].equals("C") ? patch[i] : Math.max(1, patch[i] - 2 * (int) plan.halo[i]);
+		}
+		ImagePlus imp = IJ.createHyperStack("autotune", size[0], size[1], size[2], size[3], 1, 32);
+		ImageStack stack = imp.getStack();
+		Random random = new Random(0);
+		for (int s = 1; s <= stack.getSize(); s ++) {
+			float[] pixels = (float[]) stack.getPixels(s);
+			for (int i = 0; i < pixels.length; i ++)
+				pixels[i] = (float) random.nextGaussian();
+		}
+		return imp;
+	}
+	
+	private double getValidPixels(int[] patch) {
+		double pixels = 1;
+		for (int i = 0; i < patch.length; i ++) {
+			if (!plan.dims[i].equals("C"))
+				pixels *= Math.max(1, patch[i] - 2 * (int) plan.halo[i]);
+		}
+		return pixels;
+	}
+	
+	private static String toPatchString(int[] patch) {
+		String str = "";
+		for (int i = 0; i < patch.length; i ++)
+			str += (i == 0 ? "" : ",") + patch[i];
+		return str;
+	}
+	
+	private static void closeOutputs(HashMap<String, Object> output) {
+		for (Object value : output.values()) {
+			if (value instanceof ImagePlus) {
+				((ImagePlus) value).changes = false;
+				((ImagePlus) value).close();
+			}
+		}
+	}
+}
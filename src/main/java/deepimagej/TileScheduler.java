@@ -0,0 +1,242 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import deepimagej.tools.DijTensor;
+import deepimagej.tools.Tile;
+import deepimagej.tools.TilePlanner;
+
+/*
+ * Runs the tiles of an image through the model. With a concurrency level of 1
+ * the tiles are processed one after the other in the calling thread. With a
+ * higher level, the tiles are processed by a pool of worker threads and their
+ * results are stitched by the calling thread as soon as they are ready.
+ * As every tile writes a different region of the output, the result does not
+ * depend on the order in which the tiles finish.
+ * Tiles can also be grouped in batches, that are run through the model with
+ * a single call, each tile at one position of the batch dimension.
+ */
+public class TileScheduler {
+	
+	/*
+	 * Maximum number of tiles per batch when the batch size is chosen automatically
+	 */
+	private static final int MAX_AUTO_BATCH = 16;
+	
+	/*
+	 * Work done for each of the tiles
+	 */
+	public interface TileProcessor {
+		/*
+		 * Extract the tiles, run the model on them and convert the outputs.
+		 * All the tiles of the list are run in the same batch. Executed by the 
+		 * worker threads, so it has to be thread safe.
+		 * Return null to stop the execution
+		 */
+		public TileResult[] process(List<Tile> tiles) throws Exception;
+		
+		/*
+		 * Insert the result of a tile into the outputs. Always executed by
+		 * the thread that called the scheduler. Return false to stop the execution
+		 */
+		public boolean stitch(TileResult result) throws Exception;
+	}
+	
+	/*
+	 * Outputs produced by the model for one tile
+	 */
+	public static class TileResult {
+		public Tile tile;
+		/*
+		 * One object per output tensor of the model, ImagePlus for images 
+		 * and ResultsTable for lists
+		 */
+		public Object[] outputs;
+		
+		public TileResult(Tile tile, int nOutputs) {
+			this.tile = tile;
+			this.outputs = new Object[nOutputs];
+		}
+	}
+	
+	/*
+	 * Disables the Stop button of the progress window while any of the threads is
+	 * inside a native call to the model, which cannot be interrupted, and enables
+	 * it again only when the last of them has returned
+	 */
+	public static class StopGuard {
+		private RunnerProgress rp;
+		private int running = 0;
+		
+		public StopGuard(RunnerProgress rp) {
+			this.rp = rp;
+		}
+		
+		public synchronized void enter() {
+			if (running ++ == 0 && rp != null)
+				rp.allowStopping(false);
+		}
+		
+		public synchronized void exit() {
+			if (-- running == 0 && rp != null)
+				rp.allowStopping(true);
+		}
+	}
+	
+	/*
+	 * Process all the tiles using 'concurrency' threads, grouped in batches of
+	 * 'batchSize' tiles. At most 2 batches per thread are kept in memory at the
+	 * same time. Returns false if the execution was stopped
+	 */
+	public static boolean run(List<Tile> tiles, final TileProcessor processor, int concurrency,
+								int batchSize, RunnerProgress rp) throws Exception {
+		List<List<Tile>> batches = new ArrayList<List<Tile>>();
+		for (int i = 0; i < tiles.size(); i += Math.max(1, batchSize))
+			batches.add(tiles.subList(i, Math.min(tiles.size(), i + Math.max(1, batchSize))));
+		
+		if (concurrency <= 1 || batches.size() == 1) {
+			for (List<Tile> batch : batches) {
+				if (rp != null && rp.isStopped())
+					return false;
+				if (!stitch(processor, processor.process(batch)))
+					return false;
+			}
+			return true;
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(concurrency, batches.size()));
+		CompletionService<TileResult[]> completion = new ExecutorCompletionService<TileResult[]>(pool);
+		int maxInFlight = 2 * concurrency;
+		int submitted = 0;
+		int finished = 0;
+		try {
+			while (finished < batches.size()) {
+				while (submitted < batches.size() && submitted - finished < maxInFlight) {
+					final List<Tile> batch = batches.get(submitted ++);
+					completion.submit(new Callable<TileResult[]>() {
+						@Override
+						public TileResult[] call() throws Exception {
+							return processor.process(batch);
+						}
+					});
+				}
+				TileResult[] results;
+				try {
+					results = completion.take().get();
+				} catch (ExecutionException ex) {
+					if (ex.getCause() instanceof Exception)
+						throw (Exception) ex.getCause();
+					throw ex;
+				}
+				finished ++;
+				if (!stitch(processor, results))
+					return false;
+				if (rp != null && rp.isStopped())
+					return false;
+			}
+		} finally {
+			// Do not return until the tiles that are running have finished, so
+			// the model is not closed while it is still being used
+			pool.shutdownNow();
+			while (!pool.awaitTermination(1, TimeUnit.SECONDS));
+		}
+		return true;
+	}
+	
+	private static boolean stitch(TileProcessor processor, TileResult[] results) throws Exception {
+		if (results == null)
+			return false;
+		for (TileResult result : results) {
+			if (!processor.stitch(result))
+				return false;
+		}
+		return true;
+	}
+	
+	/*
+	 * Check whether the tiles can be grouped in the batch dimension. This is only
+	 * possible if the image is processed by tiles, the only input that is not an image
+	 * is the image itself and all the outputs are images with a batch dimension
+	 */
+	public static boolean allowsBatching(Parameters params) {
+		if (params.pyramidalNetwork || !params.allowPatching)
+			return false;
+		for (DijTensor inp : params.inputList) {
+			if (!inp.tensorType.contains("image") || inp.form.indexOf("B") == -1)
+				return false;
+		}
+		for (DijTensor out : params.outputList) {
+			if (!out.tensorType.contains("image") || out.form.indexOf("B") == -1)
+				return false;
+		}
+		return true;
+	}
+	
+	/*
+	 * Number of tiles run in each call to the model. 'requested' is the batch size
+	 * asked by the user, or 0 to find it automatically so the batches run at the same
+	 * time by the 'concurrency' threads fit in the memory budget of the {@link TilePlanner}.
+	 * The tensors are native memory, so the budget is not only the free Java heap.
+	 * 'tileBytes' is the memory needed to run a single tile, including the activations
+	 */
+	public static int findBatchSize(int requested, long tileBytes, int nTiles, int concurrency) {
+		int batchSize = requested;
+		if (requested == 0) {
+			long budget = TilePlanner.getMemoryBudget() / Math.max(1, concurrency);
+			batchSize = (int) Math.min(MAX_AUTO_BATCH, budget / Math.max(1, tileBytes));
+		}
+		return Math.max(1, Math.min(batchSize, nTiles));
+	}
+}
@@ -99,6 +99,62 @@ public class HeadlessProcessing {
 		return varValues;
 	}
 	
+	/**
+	 * Retrieve the value of an optional variable of the Macro call. Optional
+	 * variables can be placed anywhere in the Macro argument. The value ends at the
+	 * next blank space, unless it is written between "[" and "]"
+	 * @param macroArg: macro string with all the commands
+	 * @param varName: name of the optional variable
+	 * @return the value of the variable or null if it is not in the Macro call
+	 */
+	public static String retrieveOptionalArgument(String macroArg, String varName) {
+		int[] limits = findOptionalArgument(macroArg, varName);
+		if (limits == null)
+			return null;
+		String value = macroArg.substring(limits[0] + varName.length() + 1, limits[1]).trim();
+		if (value.startsWith("[") && value.endsWith("]"))
+			value = value.substring(1, value.length() - 1);
+		return value;
+	}
+	
+	/**
+	 * Remove an optional variable from the Macro call, so it does not
+	 * interfere with the parsing of the compulsory variables
+	 * @param macroArg: macro string with all the commands
+	 * @param varName: name of the optional variable
+	 * @return the Macro argument without the optional variable
+	 */
+	public static String removeOptionalArgument(String macroArg, String varName) {
+		int[] limits = findOptionalArgument(macroArg, varName);
+		if (limits == null)
+			return macroArg;
+		return macroArg.substring(0, limits[0]) + macroArg.substring(limits[1]).trim();
+	}
+	
+	/**
+	 * Find where an optional variable starts and ends in the Macro call
+	 * @param macroArg: macro string with all the commands
+	 * @param varName: name of the optional variable
+	 * @return array with the start and the end of the variable, or null if 
+	 * 	it is not in the Macro call
+	 */
+	private static int[] findOptionalArgument(String macroArg, String varName) {
+		if (macroArg == null)
+			return null;
+		int start = macroArg.startsWith(varName + "=") ? 0 : macroArg.indexOf(" " + varName + "=") + 1;
+		if (start == 0 && !macroArg.startsWith(varName + "="))
+			return null;
+		int valueStart = start + varName.length() + 1;
+		int end;
+		if (macroArg.startsWith("[", valueStart))
+			end = macroArg.indexOf("]", valueStart) + 1;
+		else
+			end = macroArg.indexOf(" ", valueStart);
+		if (end <= 0)
+			end = macroArg.length();
+		return new int[] {start, end};
+	}
+	
 	/**
 	 * Check that all teh variables needed are present on the Macro call
 	 * @param macroArg: macro argument used to call the plugin
@@ -52,6 +52,7 @@ import java.util.List;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.ImageWindow;
 import ij.macro.Interpreter;
@@ -82,36 +83,34 @@ public class ArrayOperations {
 		return imp;
 	}
 
-	public static ImagePlus extractPatch(ImagePlus image, int[] sPatch, int xStart, int yStart, int zStart,
-										int overlapX, int overlapY, int overlapZ) {
-		// This method obtains a patch with the wanted size, starting at 'x_start' and
-		// 'y_start' and returns it as RandomAccessibleInterval with the dimensions
-		// already adjusted
-		ImagePlus patchImage = IJ.createImage("aux", "32-bit", sPatch[0], sPatch[1], sPatch[2], sPatch[3], 1);
-		int zi = -1;
-		for (int z = zStart - overlapZ; z < zStart - overlapZ + sPatch[3]; z++) {
-			zi ++; 
-			for (int c = 0; c < sPatch[2]; c++) {
-				image.setPositionWithoutUpdate(c + 1, z + 1, 1);
-				patchImage.setPositionWithoutUpdate(c + 1, zi + 1, 1);
-				ImageProcessor ip = image.getProcessor();
-				ImageProcessor op = patchImage.getProcessor();
-				// The actual patch with false and true information goes from patch_size/2
-				// number of pixels before the actual start of the patch until patch_size/2 number of pixels after
-				int xi = -1;
-				int yi = -1;
-				for (int x = xStart - overlapX; x < xStart - overlapX + sPatch[0]; x++) {
-					xi++;
-					yi = -1;
-					for (int y = yStart - overlapY; y < yStart - overlapY + sPatch[1]; y++) {
-						yi++;
-						op.putPixelValue(xi, yi, (double) ip.getPixelValue(x, y));
-					}
-				}
-				patchImage.setProcessor(op);
+	/*
+	 * Copy 'length' pixels of the row 'y' of a slice, starting at the column 'xStart', into
+	 * the float array 'row' at position 'rowStart'. The values are the same ones returned by
+	 * ImageProcessor.getPixelValue(), the calibration table 'cTable' (that can be null) is applied
+	 * to 8 and 16 bit images. For RGB images 'ip' has to be the processor of the slice, as the
+	 * conversion of the color into a gray value is done pixel by pixel
+	 */
+	public static void getRowAsFloat(Object pixels, ImageProcessor ip, float[] cTable, int width,
+									int y, int xStart, int length, float[] row, int rowStart) {
+		int offset = y * width + xStart;
+		if (pixels instanceof float[]) {
+			System.arraycopy((float[]) pixels, offset, row, rowStart, length);
+		} else if (pixels instanceof byte[]) {
+			byte[] px = (byte[]) pixels;
+			for (int x = 0; x < length; x ++) {
+				int v = px[offset + x] & 0xff;
+				row[rowStart + x] = cTable == null ? v : cTable[v];
 			}
+		} else if (pixels instanceof short[]) {
+			short[] px = (short[]) pixels;
+			for (int x = 0; x < length; x ++) {
+				int v = px[offset + x] & 0xffff;
+				row[rowStart + x] = cTable == null ? v : cTable[v];
+			}
+		} else {
+			for (int x = 0; x < length; x ++)
+				row[rowStart + x] = ip.getPixelValue(xStart + x, y);
 		}
-		return patchImage;
 	}
 
 	public static void imagePlusReconstructor(ImagePlus fImage, ImagePlus patch,
@@ -119,41 +118,60 @@ public class ArrayOperations {
 											   int yImageStartPatch, int yImageEndPatch,
 											   int zImageStartPatch, int zImageEndPatch,
 											   int leftoverX, int leftoverY, int leftoverZ) {
+		imagePlusReconstructor(fImage, patch, xImageStartPatch, xImageEndPatch, yImageStartPatch, yImageEndPatch,
+								zImageStartPatch, zImageEndPatch, leftoverX, leftoverY, leftoverZ, 1);
+	}
+	
+	/*
+	 * Same as the method above, writing the patch into the frame 'frame' (starting at 1)
+	 * of the image
+	 */
+	public static void imagePlusReconstructor(ImagePlus fImage, ImagePlus patch,
+											   int xImageStartPatch, int xImageEndPatch,
+											   int yImageStartPatch, int yImageEndPatch,
+											   int zImageStartPatch, int zImageEndPatch,
+											   int leftoverX, int leftoverY, int leftoverZ, int frame) {
 		// This method inserts the pixel values of the true part of the patch into its corresponding location
 		// in the image
 		int[] patchDimensions = patch.getDimensions();
 		int channels = patchDimensions[2];
-		ImageProcessor patchIp;
-		ImageProcessor imIp;
-		// Horizontal size of the roi
-		int roiX = xImageEndPatch - xImageStartPatch;
+		// Horizontal size of the roi, limited to the pixels that exist in both images
+		int roiX = Math.min(xImageEndPatch - xImageStartPatch, 
+				Math.min(fImage.getWidth() - xImageStartPatch, patch.getWidth() - leftoverX));
 		// Vertical size of the roi
-		int roiY = yImageEndPatch - yImageStartPatch;
+		int roiY = Math.min(yImageEndPatch - yImageStartPatch, 
+				Math.min(fImage.getHeight() - yImageStartPatch, patch.getHeight() - leftoverY));
 		// Transversal size of the roi
 		int roiZ = zImageEndPatch - zImageStartPatch;
+		if (roiX <= 0 || roiY <= 0)
+			return;
+		ImageStack patchStack = patch.getStack();
+		ImageStack imStack = fImage.getStack();
+		int patchWidth = patch.getWidth();
+		int imWidth = fImage.getWidth();
+		float[] row = new float[roiX];
 		
 		int zImage = zImageStartPatch - 1;
 		for (int zMirror = leftoverZ; zMirror < leftoverZ + roiZ; zMirror ++) {
 			zImage ++;
 			for (int c = 0; c < channels; c ++) {
-				int xImage = xImageStartPatch - 1;
-				int yImage = yImageStartPatch - 1;
-				patch.setPositionWithoutUpdate(c + 1, zMirror + 1, 1);
-				fImage.setPositionWithoutUpdate(c + 1, zImage + 1, 1);
-				patchIp = patch.getProcessor();
-				imIp = fImage.getProcessor();
+				int patchIndex = patch.getStackIndex(c + 1, zMirror + 1, 1);
+				Object patchPixels = patchStack.getPixels(patchIndex);
+				ImageProcessor patchIp = patchPixels instanceof int[] ? patchStack.getProcessor(patchIndex) : null;
+				float[] imPixels = (float[]) imStack.getPixels(fImage.getStackIndex(c + 1, zImage + 1, frame));
 				// The information non affected by 'the edge effect' is the one important to us. 
 				// This is why we only take the center of the patch. The size of this center is 
-				// the size of the patch minus the distorted number of pixels at each side (overlap)
-				for (int xMirror = leftoverX; xMirror < leftoverX + roiX; xMirror ++) {
-					xImage ++;
-					yImage = yImageStartPatch - 1;
-					for (int yMirror = leftoverY; yMirror < leftoverY + roiY; yMirror ++) {
-						yImage ++;
-						imIp.putPixelValue(xImage, yImage, (double) patchIp.getPixelValue(xMirror, yMirror));
+				// the size of the patch minus the distorted number of pixels at each side (overlap).
+				// The rows are contiguous in both images, so they are copied at once
+				for (int y = 0; y < roiY; y ++) {
+					int imOffset = (yImageStartPatch + y) * imWidth + xImageStartPatch;
+					if (patchPixels instanceof float[]) {
+						System.arraycopy((float[]) patchPixels, (leftoverY + y) * patchWidth + leftoverX, imPixels, imOffset, roiX);
+					} else {
+						getRowAsFloat(patchPixels, patchIp, null, patchWidth, leftoverY + y, leftoverX, roiX, row, 0);
+						System.arraycopy(row, 0, imPixels, imOffset, roiX);
 					}
 				}
-				fImage.setProcessor(imIp);
 			}
 		}
 	}
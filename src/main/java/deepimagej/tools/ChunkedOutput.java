@@ -0,0 +1,277 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej.tools;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.FileSaver;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/*
+ * Output image that is written to disk tile by tile instead of being kept in memory.
+ * The valid region of each output tile is saved as a 32-bit TIFF file (a chunk) in
+ * a folder, and the chunks are listed in the file 'chunks.csv' of the same folder with
+ * their position in the output. The output is read back as a virtual stack that
+ * assembles each plane from the chunks that cover it, so the memory needed does
+ * not depend on the size of the image.
+ */
+public class ChunkedOutput {
+	
+	public static final String INDEX_FILE = "chunks.csv";
+	// Name of the files of the chunks: frame, z, y and x of their first pixel
+	private static final String CHUNK_PATTERN = "t\\d+_z\\d+_y\\d+_x\\d+\\.tif";
+	
+	private File dir;
+	private String title;
+	private int width;
+	private int height;
+	private int nChannels;
+	private int nSlices;
+	private int nFrames;
+	private List<Chunk> chunks = new ArrayList<Chunk>();
+	private ImagePlus image;
+	
+	/*
+	 * Position of a chunk in the output. The frame starts at 0
+	 */
+	private static class Chunk {
+		int frame, x, y, z, width, height, depth;
+		File file;
+	}
+	
+	/*
+	 * @param dir: folder where the chunks are written. It is created if it does not exist.
+	 * The chunks of previous outputs written in the folder are deleted
+	 * @param title: title of the output image
+	 * @param width, height, nChannels, nSlices, nFrames: dimensions of the output image
+	 */
+	public ChunkedOutput(File dir, String title, int width, int height, int nChannels, int nSlices, int nFrames) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create the folder " + dir.getAbsolutePath());
+		this.dir = dir;
+		this.title = title;
+		this.width = width;
+		this.height = height;
+		this.nChannels = nChannels;
+		this.nSlices = nSlices;
+		this.nFrames = nFrames;
+		// Old chunks that are not listed in the new index would be mixed with the new ones
+		File[] oldChunks = dir.listFiles();
+		for (int i = 0; oldChunks != null && i < oldChunks.length; i ++) {
+			if (oldChunks[i].getName().matches(CHUNK_PATTERN) && !oldChunks[i].delete())
+				throw new IOException("Unable to delete the old chunk " + oldChunks[i].getAbsolutePath());
+		}
+		try (PrintWriter writer = new PrintWriter(new FileWriter(new File(dir, INDEX_FILE)))) {
+			writer.println("file,frame,x,y,z,width,height,depth");
+		}
+	}
+	
+	/*
+	 * Write the valid region of a tile to disk. The arguments are the same as the ones of
+	 * {@link ArrayOperations#imagePlusReconstructor(ImagePlus, ImagePlus, int, int, int, int, int, int, int, int, int, int)}.
+	 * Returns false if the chunk could not be saved
+	 */
+	public boolean add(ImagePlus patch, int xStart, int xEnd, int yStart, int yEnd, int zStart, int zEnd,
+						int leftoverX, int leftoverY, int leftoverZ, int frame) {
+		int roiX = Math.min(xEnd - xStart, Math.min(width - xStart, patch.getWidth() - leftoverX));
+		int roiY = Math.min(yEnd - yStart, Math.min(height - yStart, patch.getHeight() - leftoverY));
+		int roiZ = Math.min(zEnd - zStart, nSlices - zStart);
+		if (roiX <= 0 || roiY <= 0 || roiZ <= 0)
+			return true;
+		ImagePlus chunkImage = IJ.createHyperStack("chunk", roiX, roiY, nChannels, roiZ, 1, 32);
+		ArrayOperations.imagePlusReconstructor(chunkImage, patch, 0, roiX, 0, roiY, 0, roiZ, leftoverX, leftoverY, leftoverZ);
+		Chunk chunk = new Chunk();
+		chunk.frame = frame - 1;
+		chunk.x = xStart; chunk.y = yStart; chunk.z = zStart;
+		chunk.width = roiX; chunk.height = roiY; chunk.depth = roiZ;
+		String name = "t" + chunk.frame + "_z" + zStart + "_y" + yStart + "_x" + xStart + ".tif";
+		chunk.file = new File(dir, name);
+		boolean saved = new FileSaver(chunkImage).saveAsTiff(chunk.file.getAbsolutePath());
+		chunkImage.close();
+		if (!saved)
+			return false;
+		synchronized (chunks) {
+			chunks.add(chunk);
+			// The index is updated with every chunk so the folder is usable even if the run is stopped
+			try (PrintWriter writer = new PrintWriter(new FileWriter(new File(dir, INDEX_FILE), true))) {
+				writer.println(name + "," + chunk.frame + "," + chunk.x + "," + chunk.y + "," + chunk.z 
+								+ "," + chunk.width + "," + chunk.height + "," + chunk.depth);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Image whose planes are read from the chunks written so far
+	 */
+	public ImagePlus getImage() {
+		if (image == null) {
+			image = new ImagePlus(title, new ChunkedStack());
+			image.setDimensions(nChannels, nSlices, nFrames);
+			image.setOpenAsHyperStack(true);
+		}
+		return image;
+	}
+	
+	/*
+	 * Read again the plane that is displayed, to show the chunks written since
+	 * it was read
+	 */
+	public void refresh() {
+		ImagePlus imp = getImage();
+		imp.setProcessor(imp.getStack().getProcessor(imp.getCurrentSlice()));
+		imp.getProcessor().resetMinAndMax();
+		imp.updateAndDraw();
+	}
+	
+	/*
+	 * Virtual stack in the order of ImageJ hyperstacks (channels, slices, frames)
+	 * that reads each plane from the chunks. Every plane is assembled from all the
+	 * chunks that cover its z, and the next planes (the other channels and slices) are
+	 * usually read from the same chunks, so the chunks opened most recently are kept,
+	 * up to a fraction of the memory of ImageJ
+	 */
+	private class ChunkedStack extends VirtualStack {
+		
+		// Chunks opened, from the least to the most recently used
+		private LinkedHashMap<Chunk, ImagePlus> openChunks = new LinkedHashMap<Chunk, ImagePlus>(16, 0.75f, true);
+		private long cachedBytes = 0;
+		private long maxCachedBytes = Runtime.getRuntime().maxMemory() / 8;
+		
+		ChunkedStack() {
+			super(width, height, null, dir.getAbsolutePath());
+		}
+		
+		@Override
+		public int getSize() {
+			return nChannels * nSlices * nFrames;
+		}
+		
+		@Override
+		public int getBitDepth() {
+			return 32;
+		}
+		
+		@Override
+		public String getSliceLabel(int n) {
+			return null;
+		}
+		
+		@Override
+		public Object getPixels(int n) {
+			return getProcessor(n).getPixels();
+		}
+		
+		@Override
+		public void setPixels(Object pixels, int n) {
+		}
+		
+		@Override
+		public synchronized ImageProcessor getProcessor(int n) {
+			int c = (n - 1) % nChannels;
+			int z = ((n - 1) / nChannels) % nSlices;
+			int t = (n - 1) / (nChannels * nSlices);
+			FloatProcessor fp = new FloatProcessor(width, height);
+			float[] pixels = (float[]) fp.getPixels();
+			List<Chunk> current;
+			synchronized (chunks) {
+				current = new ArrayList<Chunk>(chunks);
+			}
+			for (Chunk chunk : current) {
+				if (chunk.frame != t || z < chunk.z || z >= chunk.z + chunk.depth)
+					continue;
+				ImagePlus chunkImage = openChunk(chunk);
+				if (chunkImage == null)
+					continue;
+				ImageStack chunkStack = chunkImage.getStack();
+				float[] chunkPixels = (float[]) chunkStack.getPixels(chunkImage.getStackIndex(c + 1, z - chunk.z + 1, 1));
+				for (int y = 0; y < chunk.height; y ++)
+					System.arraycopy(chunkPixels, y * chunk.width, pixels, (chunk.y + y) * width + chunk.x, chunk.width);
+			}
+			return fp;
+		}
+		
+		private ImagePlus openChunk(Chunk chunk) {
+			ImagePlus chunkImage = openChunks.get(chunk);
+			if (chunkImage != null)
+				return chunkImage;
+			chunkImage = IJ.openImage(chunk.file.getAbsolutePath());
+			if (chunkImage == null)
+				return null;
+			openChunks.put(chunk, chunkImage);
+			cachedBytes += getBytes(chunk);
+			// Remove the least recently used chunks, always keeping the one just opened
+			Iterator<Map.Entry<Chunk, ImagePlus>> it = openChunks.entrySet().iterator();
+			while (cachedBytes > maxCachedBytes && openChunks.size() > 1) {
+				Map.Entry<Chunk, ImagePlus> eldest = it.next();
+				cachedBytes -= getBytes(eldest.getKey());
+				eldest.getValue().close();
+				it.remove();
+			}
+			return chunkImage;
+		}
+		
+		private long getBytes(Chunk chunk) {
+			return 4L * chunk.width * chunk.height * chunk.depth * nChannels;
+		}
+	}
+}
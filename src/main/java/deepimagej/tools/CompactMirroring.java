@@ -46,7 +46,7 @@ package deepimagej.tools;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.process.FloatProcessor;
+import ij.ImageStack;
 import ij.process.ImageProcessor;
 
 public class CompactMirroring {
@@ -55,66 +55,38 @@ public class CompactMirroring {
 							   int paddingXLeft, int paddingXRight,
 							   int paddingYTop, int paddingYBottom,
 							   int paddingZFront, int paddingZBack) {
-		int nx = imp.getWidth();
-		int ny = imp.getHeight();
-		int nc = imp.getNChannels();
-		int nz = imp.getNSlices();
-		int nt = imp.getNFrames();
-		ImagePlus out = IJ.createImage("Mirror", "32-bits", nx + paddingXLeft + paddingXRight,
-										ny + paddingYTop + paddingYBottom, nc, nz + paddingZFront + paddingZBack, nt);
-		for(int c=0; c<nc; c++) {
-			for(int z=0; z<nz; z++) {
-				for(int t=0; t<nt; t++) {
-					imp.setPositionWithoutUpdate(c + 1, z + 1, t + 1);
-					out.setPositionWithoutUpdate(c + 1, z + paddingZFront + 1, t + 1);
-					ImageProcessor ip = imp.getProcessor();
-					ImageProcessor op = mirrorXY(ip, paddingXLeft, paddingXRight,
-							   					 paddingYTop, paddingYBottom);
-					out.setProcessor(op);
-					if (z < paddingZFront) {
-						out.setPositionWithoutUpdate(c + 1, z + 1, t + 1);
-						out.setProcessor(mirrorXY(ip, paddingXLeft, paddingXRight,
-			   					 paddingYTop, paddingYBottom));
-					} else if (z >= nz - paddingZBack) {
-						int sliceZBack = 2 * nz - z;
-						out.setPositionWithoutUpdate(c + 1, sliceZBack + 1, t + 1);
-						out.setProcessor(mirrorXY(ip, paddingXLeft, paddingXRight,
-			   					 paddingYTop, paddingYBottom));
+		return mirrorXY(new MirroredImage(imp, paddingXLeft, paddingXRight, paddingYTop, paddingYBottom,
+											paddingZFront, paddingZBack));
+	}
+	
+	/*
+	 * Copy an image extended by mirroring into a new 32-bit image, for all the
+	 * channels, slices and frames. The tiles are read directly from the MirroredImage,
+	 * so this is only needed to display the extended image
+	 */
+	public static ImagePlus mirrorXY(MirroredImage mirror) {
+		ImagePlus imp = mirror.image;
+		ImageStack stack = imp.getStack();
+		int[] dims = mirror.getDimensions();
+		ImagePlus out = IJ.createImage("Mirror", "32-bit", dims[0], dims[1], dims[2], dims[3], dims[4]);
+		ImageStack outStack = out.getStack();
+		float[] cTable = imp.getCalibration().getCTable();
+		float[] row = new float[imp.getWidth()];
+		for(int c=0; c<dims[2]; c++) {
+			for(int z=0; z<dims[3]; z++) {
+				for(int t=0; t<dims[4]; t++) {
+					int index = imp.getStackIndex(c + 1, mirror.zIndex[z] + 1, t + 1);
+					Object pixels = stack.getPixels(index);
+					ImageProcessor ip = pixels instanceof int[] ? stack.getProcessor(index) : null;
+					float[] outPixels = (float[]) outStack.getPixels(out.getStackIndex(c + 1, z + 1, t + 1));
+					for(int y=0; y<dims[1]; y++) {
+						ArrayOperations.getRowAsFloat(pixels, ip, cTable, imp.getWidth(), mirror.yIndex[y], 0, imp.getWidth(), row, 0);
+						for(int x=0; x<dims[0]; x++)
+							outPixels[y * dims[0] + x] = row[mirror.xIndex[x]];
 					}
 				}
 			}
 		}
 		return out;
 	}
-	
-	private static ImageProcessor mirrorXY(ImageProcessor ip,
-								   int paddingXLeft, int paddingXRight,
-								   int paddingYTop, int paddingYBottom) {
-		int nx = ip.getWidth();
-		int ny = ip.getHeight();
-		FloatProcessor fp = new FloatProcessor(nx + paddingXLeft + paddingXRight,
-												ny + paddingYTop + paddingYBottom);
-		int periodX = 2*nx - 2;
-		int periodY = 2*ny - 2;
-		int xm, ym;
-		for(int x = -paddingXLeft; x<nx+paddingXRight; x++) {
-			xm = mirror(x, nx, periodX);
-			for(int y = -paddingYTop; y<ny+paddingYBottom; y++) {
-				ym = mirror(y, ny, periodY);
-				double v = ip.getPixelValue(xm, ym);
-				fp.putPixelValue(x+paddingXLeft, y+paddingYTop, v);
-			}
-		}
-		return fp;
-	}
-	
-	private static int mirror(int a, int n, int period) {
-		while (a < 0)
-			a += period;
-		while (a >= n) {
-			a = period - a;
-			a = (a < 0 ? -a : a);
-		}
-		return a;
-	}
 }
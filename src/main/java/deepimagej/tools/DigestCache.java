@@ -0,0 +1,202 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Properties;
+
+/*
+ * Keeps the SHA-256 checksums of the weights files of the models, so the weights
+ * that have not changed are not read again every time the models are listed.
+ * The checksums are saved in a file in the directory that contains the models,
+ * one entry per weights file. Every entry also keeps the size, the modification
+ * date and, when the file system provides it, the inode of the file, and the
+ * checksum is calculated again if any of them has changed.
+ */
+public class DigestCache {
+	
+	/*
+	 * Name of the file where the checksums are saved
+	 */
+	public static final String CACHE_FILE = ".deepimagej_sha256.properties";
+	
+	/*
+	 * Whether the checksums in the cache are ignored and calculated again.
+	 * The new checksums replace the old ones in the cache
+	 */
+	private static boolean forceRehash = false;
+	/*
+	 * Cache files loaded in this session, by directory of models
+	 */
+	private static HashMap<File, Properties> caches = new HashMap<File, Properties>();
+	
+	public static synchronized void setForceRehash(boolean force) {
+		forceRehash = force;
+	}
+	
+	/*
+	 * Return the SHA-256 checksum of a weights file, calculating it only if the
+	 * file is not in the cache or has changed since it was calculated
+	 * @param fileName: path to the weights file, inside the folder of a model
+	 * @return the checksum in hexadecimal
+	 */
+	public static String createSHA256(String fileName) throws IOException {
+		String sha256 = getCached(fileName);
+		if (sha256 != null)
+			return sha256;
+		// The checksum is calculated outside of the lock, so several models can be checked at the same time
+		sha256 = FileTools.createSHA256(new File(fileName).getAbsolutePath());
+		put(fileName, sha256);
+		return sha256;
+	}
+	
+	/*
+	 * Return the checksum of a file saved in the cache, without calculating it
+	 * @param fileName: path to the weights file, inside the folder of a model
+	 * @return the checksum, or null if it is not in the cache or the file has changed
+	 */
+	public static String getCached(String fileName) throws IOException {
+		File file = new File(fileName).getAbsoluteFile();
+		String stamp = getStamp(file);
+		File dir = getCacheDir(file);
+		synchronized (DigestCache.class) {
+			String entry = forceRehash ? null : load(dir).getProperty(getKey(dir, file));
+			if (entry != null && entry.startsWith(stamp + ","))
+				return entry.substring(stamp.length() + 1);
+		}
+		return null;
+	}
+	
+	/*
+	 * Save in the cache a checksum calculated somewhere else, for example
+	 * while the file was unzipped
+	 */
+	public static void put(String fileName, String sha256) throws IOException {
+		File file = new File(fileName).getAbsoluteFile();
+		String stamp = getStamp(file);
+		File dir = getCacheDir(file);
+		synchronized (DigestCache.class) {
+			Properties cache = load(dir);
+			cache.setProperty(getKey(dir, file), stamp + "," + sha256);
+			save(dir, cache);
+		}
+	}
+	
+	/*
+	 * Size, modification date and inode of the file, used to know if it has changed
+	 */
+	private static String getStamp(File file) throws IOException {
+		BasicFileAttributes attr = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		// The file key is null in the file systems that do not have inodes
+		Object inode = attr.fileKey();
+		return attr.size() + "," + attr.lastModifiedTime().toMillis() + "," + (inode == null ? "" : inode.toString().replace(",", ";"));
+	}
+	
+	/*
+	 * The cache is saved in the directory that contains the model folders
+	 */
+	private static File getCacheDir(File file) {
+		File modelFolder = file.getParentFile();
+		if (modelFolder.getParentFile() != null)
+			return modelFolder.getParentFile();
+		return modelFolder;
+	}
+	
+	/*
+	 * Path of the weights file relative to the directory of the cache, so the cache
+	 * remains valid if the models directory is moved
+	 */
+	private static String getKey(File dir, File file) {
+		return dir.toPath().relativize(file.toPath()).toString().replace(File.separator, "/");
+	}
+	
+	private static Properties load(File dir) {
+		Properties cache = caches.get(dir);
+		if (cache != null)
+			return cache;
+		cache = new Properties();
+		File file = new File(dir, CACHE_FILE);
+		if (file.isFile()) {
+			try (InputStream is = new FileInputStream(file)) {
+				cache.load(is);
+			} catch (IOException | IllegalArgumentException e) {
+				// A damaged cache is discarded, the checksums are just calculated again
+				System.out.println("[DEBUG] Unable to read the checksums cache " + file.getAbsolutePath());
+				cache = new Properties();
+			}
+		}
+		caches.put(dir, cache);
+		return cache;
+	}
+	
+	/*
+	 * Write the cache to a temporary file first, so an interrupted write never
+	 * leaves a damaged cache
+	 */
+	private static void save(File dir, Properties cache) {
+		File file = new File(dir, CACHE_FILE);
+		File tmp = new File(dir, CACHE_FILE + ".tmp");
+		try {
+			try (OutputStream os = new FileOutputStream(tmp)) {
+				cache.store(os, "DeepImageJ SHA-256 checksums of the model weights: size, date, inode, checksum");
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			// The models directory might be read only, the cache is kept in memory
+			System.out.println("[DEBUG] Unable to save the checksums cache at " + dir.getAbsolutePath() + ": " + e.getMessage());
+			tmp.delete();
+		}
+	}
+}
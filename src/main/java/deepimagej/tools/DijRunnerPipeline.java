@@ -0,0 +1,373 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import deepimagej.DeepImageJ;
+import deepimagej.RunnerProgress;
+import deepimagej.RunnerPt;
+import deepimagej.RunnerTf;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.macro.Interpreter;
+import ij.measure.ResultsTable;
+
+/*
+ * Runs a model on every image of a folder. Pre-processing, inference and
+ * post-processing are executed by three different threads, so while the model
+ * runs on one image the next image is already being pre-processed or the
+ * previous one post-processed. The stages are connected by bounded queues, so
+ * only a few images are kept in memory at the same time.
+ * The processing macros work on the images open in ImageJ, so the pre-processing
+ * and the post-processing never run at the same time, and the inputs of an image
+ * are removed from the ImageJ workspace once they are pre-processed.
+ * The outputs of every image are saved in the output folder.
+ */
+public class DijRunnerPipeline implements Callable<Boolean> {
+	
+	/*
+	 * Maximum number of images waiting between two consecutive stages
+	 */
+	private static final int QUEUE_CAPACITY = 2;
+	/*
+	 * Names of the stages, used to report the times
+	 */
+	private static final String[] STAGES = new String[] {"pre-processing", "inference", "post-processing"};
+	/*
+	 * Item sent after the last image to finish the stages
+	 */
+	private static final PipelineItem END = new PipelineItem(null);
+	
+	private DeepImageJ dp;
+	private RunnerProgress rp;
+	private Log log;
+	private File inputDir;
+	private File outputDir;
+	/*
+	 * Time in nanoseconds spent by each of the stages. Each position is
+	 * only written by the thread that runs the stage
+	 */
+	private long[] stageTime = new long[STAGES.length];
+	private int[] stageCount = new int[STAGES.length];
+	/*
+	 * Lock held while the ImageJ workspace is used: pre-processing, post-processing
+	 * and closing the images
+	 */
+	private final Object workspace = new Object();
+	
+	public DijRunnerPipeline(DeepImageJ dp, RunnerProgress rp, Log log, String inputDir, String outputDir) {
+		this.dp = dp;
+		this.rp = rp;
+		this.log = log;
+		this.inputDir = new File(inputDir);
+		this.outputDir = new File(outputDir);
+	}
+
+	@Override
+	public Boolean call() throws Exception {
+		String[] names = inputDir.list();
+		if (names == null) {
+			IJ.error("The input folder does not exist: " + inputDir.getAbsolutePath());
+			return false;
+		}
+		if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+			IJ.error("Unable to create the output folder: " + outputDir.getAbsolutePath());
+			return false;
+		}
+		Arrays.sort(names);
+		final BlockingQueue<PipelineItem> toRunner = new ArrayBlockingQueue<PipelineItem>(QUEUE_CAPACITY);
+		final BlockingQueue<PipelineItem> toPostprocessing = new ArrayBlockingQueue<PipelineItem>(QUEUE_CAPACITY);
+		
+		long start = System.nanoTime();
+		ExecutorService service = Executors.newFixedThreadPool(STAGES.length);
+		int processed = 0;
+		try {
+			Future<Integer> f0 = service.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return preprocessingStage(names, toRunner);
+				}
+			});
+			Future<Integer> f1 = service.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return runnerStage(toRunner, toPostprocessing);
+				}
+			});
+			Future<Integer> f2 = service.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return postprocessingStage(toPostprocessing);
+				}
+			});
+			f0.get();
+			f1.get();
+			processed = f2.get();
+		} catch (ExecutionException ex) {
+			ex.getCause().printStackTrace();
+			IJ.error("Error processing the images of the folder: " + inputDir.getAbsolutePath());
+		} finally {
+			service.shutdownNow();
+		}
+		printTimes(processed, System.nanoTime() - start);
+		return processed > 0;
+	}
+	
+	/*
+	 * Open each of the images of the folder and pre-process it
+	 */
+	private int preprocessingStage(String[] names, BlockingQueue<PipelineItem> out) throws InterruptedException {
+		int count = 0;
+		try {
+			for (String name : names) {
+				if (isStopped())
+					break;
+				File file = new File(inputDir, name);
+				if (file.isDirectory() || name.startsWith("."))
+					continue;
+				long start = System.nanoTime();
+				ImagePlus imp = IJ.openImage(file.getAbsolutePath());
+				if (imp == null) {
+					IJ.log("Skipping file that is not an image: " + name);
+					continue;
+				}
+				PipelineItem item = new PipelineItem(imp);
+				synchronized (workspace) {
+					try {
+						item.inputs = new DijRunnerPreprocessing(dp, null, imp, true, false).call();
+					} catch (Exception ex) {
+						ex.printStackTrace();
+					}
+					if (item.inputs != null)
+						detachInputs(item.inputs);
+					else
+						closeImage(item);
+				}
+				addTime(0, System.nanoTime() - start);
+				if (item.inputs == null) {
+					IJ.log("Error pre-processing image: " + name);
+					continue;
+				}
+				out.put(item);
+				count ++;
+			}
+		} finally {
+			out.put(END);
+		}
+		return count;
+	}
+	
+	/*
+	 * Run the model on the pre-processed images
+	 */
+	private int runnerStage(BlockingQueue<PipelineItem> in, BlockingQueue<PipelineItem> out) throws InterruptedException {
+		int count = 0;
+		try {
+			for (PipelineItem item = in.take(); item != END; item = in.take()) {
+				if (isStopped()) {
+					synchronized (workspace) {
+						closeImage(item);
+					}
+					continue;
+				}
+				long start = System.nanoTime();
+				try {
+					if (dp.params.framework.equals("tensorflow"))
+						item.outputs = new RunnerTf(dp, null, item.inputs, log).call();
+					else
+						item.outputs = new RunnerPt(dp, null, item.inputs, log).call();
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				}
+				addTime(1, System.nanoTime() - start);
+				if (item.outputs == null) {
+					IJ.log("Error running the model on image: " + item.title);
+					synchronized (workspace) {
+						closeImage(item);
+					}
+					continue;
+				}
+				out.put(item);
+				count ++;
+			}
+		} finally {
+			out.put(END);
+		}
+		return count;
+	}
+	
+	/*
+	 * Post-process the outputs of the model and save them
+	 */
+	private int postprocessingStage(BlockingQueue<PipelineItem> in) throws InterruptedException {
+		int count = 0;
+		for (PipelineItem item = in.take(); item != END; item = in.take()) {
+			long start = System.nanoTime();
+			HashMap<String, Object> output = null;
+			synchronized (workspace) {
+				if (!isStopped())
+					output = new DijRunnerPostprocessing(dp, null, item.outputs).call();
+				if (output != null) {
+					saveOutputs(item.title, output);
+					count ++;
+				} else if (!isStopped()) {
+					IJ.log("Error post-processing image: " + item.title);
+				}
+				closeOutputs(output);
+				closeOutputs(item.outputs);
+				closeImage(item);
+			}
+			addTime(2, System.nanoTime() - start);
+		}
+		return count;
+	}
+	
+	/*
+	 * Save every image as a tif file and every table as a csv file. The name of
+	 * the files is the name of the input image followed by the name of the output
+	 */
+	private void saveOutputs(String title, HashMap<String, Object> output) {
+		String baseName = title.lastIndexOf(".") != -1 ? title.substring(0, title.lastIndexOf(".")) : title;
+		for (String key : output.keySet()) {
+			Object obj = output.get(key);
+			String name = baseName + "_" + key.replaceAll("[\\\\/:*?\"<>|]", "_");
+			if (obj instanceof ImagePlus) {
+				IJ.saveAsTiff((ImagePlus) obj, new File(outputDir, name + ".tif").getAbsolutePath());
+			} else if (obj instanceof ResultsTable) {
+				try {
+					((ResultsTable) obj).saveAs(new File(outputDir, name + ".csv").getAbsolutePath());
+				} catch (IOException ex) {
+					ex.printStackTrace();
+					IJ.log("Unable to save table: " + name);
+				}
+			}
+		}
+	}
+	
+	private static void closeOutputs(HashMap<String, Object> output) {
+		if (output == null)
+			return;
+		for (Object obj : output.values()) {
+			if (obj instanceof ImagePlus) {
+				((ImagePlus) obj).changes = false;
+				((ImagePlus) obj).close();
+			}
+		}
+	}
+	
+	/*
+	 * Remove the pre-processed inputs from the ImageJ workspace without closing them.
+	 * The model reads them from the map, and the processing of the other images
+	 * cannot find them by their title
+	 */
+	private static void detachInputs(HashMap<String, Object> inputs) {
+		for (Object obj : inputs.values()) {
+			if (!(obj instanceof ImagePlus))
+				continue;
+			ImagePlus imp = (ImagePlus) obj;
+			if (imp.getWindow() != null)
+				imp.hide();
+			Interpreter.removeBatchModeImage(imp);
+		}
+	}
+	
+	/*
+	 * Close the input image and the images created by the pre-processing
+	 */
+	private static void closeImage(PipelineItem item) {
+		item.imp.changes = false;
+		item.imp.close();
+		ArrayOperations.removeProcessedInputsFromMemory(item.inputs, item.title, true);
+	}
+	
+	private boolean isStopped() {
+		return rp != null && rp.isStopped();
+	}
+	
+	private synchronized void addTime(int stage, long time) {
+		stageTime[stage] += time;
+		stageCount[stage] ++;
+	}
+	
+	/*
+	 * Report the total and the average time per image of each of the stages
+	 */
+	private synchronized void printTimes(int processed, long wallTime) {
+		String msg = "Processed " + processed + " images of folder " + inputDir.getAbsolutePath() + "\n";
+		for (int i = 0; i < STAGES.length; i ++) {
+			double avg = stageCount[i] == 0 ? 0 : stageTime[i] / (double) stageCount[i];
+			msg += " - " + STAGES[i] + ": " + NumFormat.time(stageTime[i]) + " total, " + NumFormat.time(avg) + " per image\n";
+		}
+		msg += " - total time: " + NumFormat.time(wallTime);
+		IJ.log(msg);
+	}
+	
+	/*
+	 * Image that goes through the stages of the pipeline
+	 */
+	private static class PipelineItem {
+		ImagePlus imp;
+		String title;
+		HashMap<String, Object> inputs;
+		HashMap<String, Object> outputs;
+		
+		PipelineItem(ImagePlus imp) {
+			this.imp = imp;
+			this.title = imp == null ? null : imp.getTitle();
+		}
+	}
+
+}
@@ -108,7 +108,16 @@ public class DijRunnerPreprocessing implements Callable<HashMap<String, Object>>
 			
 			// Create copy of input image to have it after the original image
 			// has been modified
-			im = inp.duplicate();
+			// The slices of a virtual stack are read from disk, so they are not modified
+			// and the copy can share them. Like this, images bigger than the memory are
+			// not loaded when the output is written to disk
+			if (inp.getStack().isVirtual() && dp.params.outputChunks != null) {
+				im = new ImagePlus(inp.getTitle(), inp.getStack());
+				im.setDimensions(inp.getNChannels(), inp.getNSlices(), inp.getNFrames());
+				im.setCalibration(inp.getCalibration());
+			} else {
+				im = inp.duplicate();
+			}
 			correctTitle = inp.getTitle();
 			im.setTitle("tmp_" + correctTitle);
 			if (batch == false) {
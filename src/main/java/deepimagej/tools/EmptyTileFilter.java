@@ -0,0 +1,148 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej.tools;
+
+import java.util.Arrays;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/*
+ * Finds the tiles whose input is empty, so they do not have to be run through the
+ * model. A tile is empty when a statistic of the pixels of the image that it writes
+ * to the output (all the channels) is smaller or equal than a threshold:
+ * the standard deviation, for a flat background, or the maximum, for a dark background.
+ * The output of the empty tiles is filled with a constant value.
+ */
+public class EmptyTileFilter {
+	
+	public static final String STD = "std";
+	public static final String MAX = "max";
+	
+	/*
+	 * Check whether the name of the statistic is valid
+	 */
+	public static boolean isValidStatistic(String statistic) {
+		return statistic.equals(STD) || statistic.equals(MAX);
+	}
+	
+	/*
+	 * Whether the region of the image processed by the tile is empty
+	 */
+	public static boolean isEmpty(ImagePlus imp, Tile tile, String statistic, double threshold) {
+		return getStatistic(imp, tile, statistic) <= threshold;
+	}
+	
+	/*
+	 * Statistic of the pixels of the image that are written to the output by the tile.
+	 * The halo is not taken into account
+	 */
+	public static double getStatistic(ImagePlus imp, Tile tile, String statistic) {
+		ImageStack stack = imp.getStack();
+		int width = imp.getWidth();
+		float[] cTable = imp.getCalibration().getCTable();
+		int xStart = Math.max(0, tile.xImageStart);
+		int xEnd = Math.min(width, tile.xImageEnd);
+		int yStart = Math.max(0, tile.yImageStart);
+		int yEnd = Math.min(imp.getHeight(), tile.yImageEnd);
+		int zStart = Math.max(0, tile.zImageStart);
+		int zEnd = Math.min(imp.getNSlices(), tile.zImageEnd);
+		if (xEnd <= xStart || yEnd <= yStart || zEnd <= zStart)
+			return 0;
+		float[] row = new float[xEnd - xStart];
+		double max = -Double.MAX_VALUE;
+		double sum = 0;
+		double sum2 = 0;
+		long n = 0;
+		for (int c = 0; c < imp.getNChannels(); c ++) {
+			for (int z = zStart; z < zEnd; z ++) {
+				int stackIndex = imp.getStackIndex(c + 1, z + 1, tile.t + 1);
+				ImageProcessor ip = null;
+				Object pixels;
+				// The slices of virtual stacks are read from disk every time they are requested
+				if (stack.isVirtual()) {
+					ip = stack.getProcessor(stackIndex);
+					pixels = ip.getPixels();
+				} else {
+					pixels = stack.getPixels(stackIndex);
+				}
+				if (pixels instanceof int[] && ip == null)
+					ip = stack.getProcessor(stackIndex);
+				for (int y = yStart; y < yEnd; y ++) {
+					ArrayOperations.getRowAsFloat(pixels, ip, cTable, width, y, xStart, row.length, row, 0);
+					for (float v : row) {
+						max = Math.max(max, v);
+						sum += v;
+						sum2 += (double) v * v;
+					}
+					n += row.length;
+				}
+			}
+		}
+		if (statistic.equals(MAX))
+			return max;
+		double mean = sum / n;
+		return Math.sqrt(Math.max(0, sum2 / n - mean * mean));
+	}
+	
+	/*
+	 * Output of an empty tile, with the dimensions of the outputs of the
+	 * tiles that are run through the model
+	 * @param dims: dimensions of the output tile, as given by ImagePlus.getDimensions()
+	 * @param value: value of all the pixels
+	 */
+	public static ImagePlus createConstantPatch(String title, int[] dims, float value) {
+		ImagePlus patch = IJ.createHyperStack(title, dims[0], dims[1], dims[2], dims[3], dims[4], 32);
+		if (value != 0) {
+			ImageStack stack = patch.getStack();
+			for (int s = 1; s <= stack.getSize(); s ++)
+				Arrays.fill((float[]) stack.getPixels(s), value);
+		}
+		return patch;
+	}
+}
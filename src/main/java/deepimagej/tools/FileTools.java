@@ -52,11 +52,14 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -72,6 +75,11 @@ import java.util.zip.ZipOutputStream;
 import ij.IJ;
 
 public class FileTools {
+	
+	/*
+	 * Size of the buffers used to read and write the zip files, 1 MB
+	 */
+	public static final int ZIP_BUFFER = 1024 * 1024;
 
 	static public String getFolderSizeKb(String dir) {
 		return String.format("%3.2f Mb", (getFolderSize(dir) / (1024 * 1024.0)));
@@ -291,6 +299,93 @@ public class FileTools {
  	    return true;
  	}
     
+    /*
+     * Unzip zip file 'source' into 'outPath' reading it only once. The SHA-256
+     * checksum of the zip file is calculated over the same bytes that are inflated.
+     * The files are extracted into a temporary folder inside 'outPath' and only moved
+     * to their place once the checksum is verified, so if the zip file cannot be unzipped
+     * or its checksum is not the expected one, the contents of 'outPath' are not modified.
+     * Entries that would be written outside of the folder stop the extraction with an IOException
+     * @param sha256: expected checksum, null to only calculate it
+     * @return the checksum of the zip file, null if it could not be unzipped
+     */
+    public static String unzipVerified(File source, String outPath, String sha256) throws IOException, InterruptedException {
+        MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return null;
+		}
+        File tmpDir = new File(outPath, ".unzipping_" + source.getName());
+        // Left by an extraction that was interrupted
+        if (tmpDir.exists())
+            deleteDir(tmpDir);
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        		DigestInputStream dis = new DigestInputStream(new BufferedInputStream(Channels.newInputStream(channel), ZIP_BUFFER), digest);
+        		ZipInputStream zis = new ZipInputStream(dis)) {
+            byte[] buffer = new byte[ZIP_BUFFER];
+            if (!tmpDir.mkdirs())
+                throw new IOException("Unable to create the folder " + tmpDir.getAbsolutePath());
+            String tmpPath = tmpDir.getCanonicalPath() + File.separator;
+            ZipEntry entry = zis.getNextEntry();
+            while (entry != null) {
+                File file = new File(tmpDir, entry.getName());
+                // Entries such as "../file" would be written outside of the folder
+                if (!file.getCanonicalPath().startsWith(tmpPath))
+                    throw new IOException("The entry " + entry.getName() + " is outside of the folder " + outPath);
+                if (entry.isDirectory()) {
+                    file.mkdirs();
+                } else {
+                    file.getParentFile().mkdirs();
+                    try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file), ZIP_BUFFER)) {
+                        int read;
+                        while ((read = zis.read(buffer)) != -1) {
+                            if (Thread.interrupted())
+                                throw new InterruptedException();
+                            bos.write(buffer, 0, read);
+                        }
+                    }
+                }
+                entry = zis.getNextEntry();
+            }
+            // The central directory at the end of the file is not read
+            // to unzip it, but it is part of the checksum
+            while (dis.read(buffer) != -1);
+            String hash = bytesToHex(digest.digest());
+            if (sha256 == null || hash.equals(sha256)) {
+                for (File sub : tmpDir.listFiles())
+                    moveTree(sub, new File(outPath, sub.getName()));
+            }
+            return hash;
+        } catch (ZipException e) {
+			e.printStackTrace();
+			IJ.error("Error unzipping: " + source.getName() + "\n"
+					+ "It seems that the zipped file was corrupted\n"
+					+ " while zipping and cannot be unzipped correctly.");
+			return null;
+        } finally {
+            // Only contains files if the extraction failed or was not verified
+            deleteDir(tmpDir);
+        }
+    }
+    
+    /*
+     * Move a file or folder to 'dst'. The contents of folders are merged with the
+     * ones of the folder that might already exist at 'dst', replacing its files
+     */
+    private static void moveTree(File src, File dst) throws IOException {
+        if (src.isDirectory()) {
+            if (!dst.isDirectory() && !dst.mkdirs())
+                throw new IOException("Unable to create the folder " + dst.getAbsolutePath());
+            for (File sub : src.listFiles())
+                moveTree(sub, new File(dst, sub.getName()));
+            src.delete();
+        } else {
+            Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
     /**
      * Compresses a list of files to a destination zip file
      * @param listFiles A collection of files and directories
@@ -0,0 +1,147 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import ij.ImagePlus;
+
+/*
+ * Image extended by mirroring its borders, without copying it. For each axis, a
+ * table gives the coordinate of the original image that corresponds to each coordinate
+ * of the extended image, so the tiles can be read directly from the original pixels.
+ * The borders are reflected without repeating the edge pixel, as in CompactMirroring.
+ */
+public class MirroredImage {
+	
+	/*
+	 * Original image
+	 */
+	public ImagePlus image;
+	/*
+	 * Coordinate of the original image for each coordinate of the extended image
+	 */
+	public int[] xIndex;
+	public int[] yIndex;
+	public int[] zIndex;
+	private int paddingXLeft;
+	private int paddingYTop;
+	private int paddingZFront;
+	
+	public MirroredImage(ImagePlus imp, 
+						int paddingXLeft, int paddingXRight,
+						int paddingYTop, int paddingYBottom,
+						int paddingZFront, int paddingZBack) {
+		this.image = imp;
+		this.paddingXLeft = paddingXLeft;
+		this.paddingYTop = paddingYTop;
+		this.paddingZFront = paddingZFront;
+		xIndex = createIndex(imp.getWidth(), paddingXLeft, paddingXRight);
+		yIndex = createIndex(imp.getHeight(), paddingYTop, paddingYBottom);
+		zIndex = createIndex(imp.getNSlices(), paddingZFront, paddingZBack);
+	}
+	
+	public int getWidth() {
+		return xIndex.length;
+	}
+	
+	public int getHeight() {
+		return yIndex.length;
+	}
+	
+	public int getNSlices() {
+		return zIndex.length;
+	}
+	
+	/*
+	 * Dimensions of the extended image in the same order as ImagePlus.getDimensions()
+	 */
+	public int[] getDimensions() {
+		int[] dims = image.getDimensions();
+		return new int[] {xIndex.length, yIndex.length, dims[2], zIndex.length, dims[4]};
+	}
+	
+	/*
+	 * Coordinate of the original image for the coordinate 'x' of the extended image.
+	 * Coordinates outside of the extended image are also reflected
+	 */
+	public int getX(int x) {
+		return x >= 0 && x < xIndex.length ? xIndex[x] : mirror(x - paddingXLeft, image.getWidth());
+	}
+	
+	public int getY(int y) {
+		return y >= 0 && y < yIndex.length ? yIndex[y] : mirror(y - paddingYTop, image.getHeight());
+	}
+	
+	public int getZ(int z) {
+		return z >= 0 && z < zIndex.length ? zIndex[z] : mirror(z - paddingZFront, image.getNSlices());
+	}
+	
+	/*
+	 * Whether the 'length' columns that start at 'x' in the extended image are
+	 * consecutive columns of the original image
+	 */
+	public boolean isContiguousX(int x, int length) {
+		return x >= paddingXLeft && x + length <= paddingXLeft + image.getWidth();
+	}
+	
+	private static int[] createIndex(int n, int before, int after) {
+		int[] index = new int[n + before + after];
+		for (int i = 0; i < index.length; i ++)
+			index[i] = mirror(i - before, n);
+		return index;
+	}
+	
+	/*
+	 * Reflect the coordinate 'a' into the interval [0, n)
+	 */
+	private static int mirror(int a, int n) {
+		if (n == 1)
+			return 0;
+		int period = 2 * n - 2;
+		a = a % period;
+		if (a < 0)
+			a += period;
+		return a < n ? a : period - a;
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.tensorflow.SavedModelBundle;
+
+import ai.djl.ndarray.NDList;
+import ai.djl.repository.zoo.ZooModel;
+import deepimagej.DeepImageJ;
+
+/*
+ * Keeps the models loaded between consecutive executions of the plugin, so a macro
+ * that runs the same model on many images only loads it once.
+ * The models are identified by their folder, framework and tag, and by the date
+ * of the weights file, so a model that is modified is loaded again.
+ * When the size of the cached models exceeds the budget, the least recently used
+ * models are closed.
+ */
+public class ModelCache {
+	
+	/*
+	 * Default maximum size of the models kept in memory, 2 GB
+	 */
+	public static final long DEFAULT_BUDGET = 2048L * 1024 * 1024;
+	
+	private static long budget = DEFAULT_BUDGET;
+	private static long size = 0;
+	/*
+	 * Cached models in access order, the first one is the least recently used
+	 */
+	private static LinkedHashMap<String, CachedModel> models = new LinkedHashMap<String, CachedModel>(16, 0.75f, true);
+	
+	/*
+	 * Set the model in the cache, if it exists, to the DeepImageJ object
+	 * @param dp: model that is going to be run
+	 * @return true if the model was already loaded
+	 */
+	public static synchronized boolean restore(DeepImageJ dp) {
+		CachedModel cached = models.get(getKey(dp));
+		if (cached == null)
+			return false;
+		if (cached.lastModified != getWeightsFile(dp).lastModified()) {
+			remove(getKey(dp));
+			return false;
+		}
+		if (cached.tfModel != null)
+			dp.setTfModel(cached.tfModel);
+		else
+			dp.setTorchModel(cached.torchModel);
+		System.out.println("[DEBUG] Model '" + dp.getName() + "' retrieved from the cache");
+		return true;
+	}
+	
+	/*
+	 * Add the model loaded in the DeepImageJ object to the cache, evicting the least
+	 * recently used models if needed. Models larger than the budget are not cached.
+	 * @param dp: model that has been loaded
+	 * @return true if the model is kept in the cache
+	 */
+	public static synchronized boolean put(DeepImageJ dp) {
+		if (dp.getTfModel() == null && dp.getTorchModel() == null)
+			return false;
+		String key = getKey(dp);
+		CachedModel cached = models.get(key);
+		if (cached != null && (cached.tfModel == dp.getTfModel() && cached.torchModel == dp.getTorchModel()))
+			return true;
+		else if (cached != null)
+			remove(key);
+		long modelSize = getModelSize(dp);
+		if (modelSize > budget)
+			return false;
+		models.put(key, new CachedModel(dp.getTfModel(), dp.getTorchModel(), modelSize, getWeightsFile(dp).lastModified()));
+		size += modelSize;
+		Iterator<Map.Entry<String, CachedModel>> it = models.entrySet().iterator();
+		while (size > budget && it.hasNext()) {
+			Map.Entry<String, CachedModel> oldest = it.next();
+			if (oldest.getKey().equals(key))
+				continue;
+			CachedModel old = oldest.getValue();
+			it.remove();
+			size -= old.size;
+			old.close();
+		}
+		return true;
+	}
+	
+	/*
+	 * Whether the model loaded in the DeepImageJ object is kept by the cache. Cached
+	 * models should not be closed when the plugin finishes
+	 */
+	public static synchronized boolean contains(DeepImageJ dp) {
+		for (CachedModel cached : models.values()) {
+			if ((dp.getTfModel() != null && cached.tfModel == dp.getTfModel()) 
+					|| (dp.getTorchModel() != null && cached.torchModel == dp.getTorchModel()))
+				return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * Close and remove every model whose folder is the one provided
+	 * @param modelDir: folder of the model, if null all the models are removed
+	 * @return number of models removed
+	 */
+	public static synchronized int evict(String modelDir) {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (String key : models.keySet()) {
+			if (modelDir == null || key.startsWith(getPathKey(modelDir)))
+				keys.add(key);
+		}
+		for (String key : keys)
+			remove(key);
+		return keys.size();
+	}
+	
+	/*
+	 * Set the maximum size of the models kept in memory
+	 * @param bytes: budget in bytes, 0 disables the cache
+	 */
+	public static synchronized void setBudget(long bytes) {
+		budget = bytes;
+		Iterator<Map.Entry<String, CachedModel>> it = models.entrySet().iterator();
+		while (size > budget && it.hasNext()) {
+			CachedModel old = it.next().getValue();
+			it.remove();
+			size -= old.size;
+			old.close();
+		}
+	}
+	
+	public static synchronized long getBudget() {
+		return budget;
+	}
+	
+	private static void remove(String key) {
+		CachedModel cached = models.remove(key);
+		if (cached != null) {
+			size -= cached.size;
+			cached.close();
+		}
+	}
+	
+	private static String getKey(DeepImageJ dp) {
+		return getPathKey(dp.getPath()) + dp.params.framework + File.pathSeparator + dp.params.tag;
+	}
+	
+	private static String getPathKey(String modelDir) {
+		return new File(modelDir).getAbsolutePath() + File.pathSeparator;
+	}
+	
+	/*
+	 * File whose date identifies the version of the model
+	 */
+	private static File getWeightsFile(DeepImageJ dp) {
+		if (dp.params.framework.equals("tensorflow"))
+			return new File(dp.getPath(), "saved_model.pb");
+		return new File(dp.getPath(), dp.ptName);
+	}
+	
+	/*
+	 * Approximate the memory used by the model with the size of its weights on disk
+	 */
+	private static long getModelSize(DeepImageJ dp) {
+		if (dp.params.framework.equals("tensorflow"))
+			return getWeightsFile(dp).length() + FileTools.getFolderSize(dp.getPath() + File.separator + "variables");
+		return getWeightsFile(dp).length();
+	}
+	
+	private static class CachedModel {
+		SavedModelBundle tfModel;
+		ZooModel<NDList, NDList> torchModel;
+		long size;
+		long lastModified;
+		
+		CachedModel(SavedModelBundle tfModel, ZooModel<NDList, NDList> torchModel, long size, long lastModified) {
+			this.tfModel = tfModel;
+			this.torchModel = torchModel;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+		
+		void close() {
+			if (tfModel != null) {
+				tfModel.session().close();
+				tfModel.close();
+			} else if (torchModel != null) {
+				torchModel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.error.YAMLException;
+
+/*
+ * Index of the models of a models directory, so the yaml files that have not
+ * changed are not parsed again every time the models are listed.
+ * The index is a single yaml file in the models directory that keeps, for every rdf.yaml,
+ * its contents already parsed together with its size and modification date. The
+ * index is read once, and only the yaml files that are new or have changed are parsed
+ * and updated in the index. The checksums of the weights are kept by the {@link DigestCache}.
+ * The index is read with the safe constructor of SnakeYAML, so it can only contain
+ * maps, lists and plain values, never instances of other classes.
+ */
+public class ModelIndex {
+	
+	/*
+	 * Name of the index file in the models directory
+	 */
+	public static final String INDEX_FILE = ".deepimagej_models.yaml";
+	
+	/*
+	 * Indexes loaded in this session, by models directory
+	 */
+	private static HashMap<File, HashMap<String, Entry>> indexes = new HashMap<File, HashMap<String, Entry>>();
+	/*
+	 * Directories whose index has changed since it was saved
+	 */
+	private static Set<File> modified = new HashSet<File>();
+	
+	/*
+	 * Return the contents of the yaml file of a model, from the index if the file has
+	 * not changed since it was indexed, or parsing it and adding it to the index if it has
+	 * @param yamlFile: rdf.yaml (or model.yaml) inside the folder of a model
+	 * @return the contents of the yaml file, as read by {@link YAMLUtils#readConfig(String)}
+	 */
+	public static Map<String, Object> readConfig(File yamlFile) {
+		yamlFile = yamlFile.getAbsoluteFile();
+		File dir = getIndexDir(yamlFile);
+		String key = getKey(dir, yamlFile);
+		String stamp = yamlFile.length() + "," + yamlFile.lastModified();
+		synchronized (ModelIndex.class) {
+			Entry entry = load(dir).get(key);
+			// Every call returns its own copy, so the models never share the same objects
+			if (entry != null && entry.stamp.equals(stamp))
+				return copyConfig(entry.config);
+		}
+		Map<String, Object> obj = YAMLUtils.readConfig(yamlFile.getAbsolutePath());
+		if (obj == null)
+			return obj;
+		synchronized (ModelIndex.class) {
+			load(dir).put(key, new Entry(stamp, copyConfig(obj)));
+			modified.add(dir);
+		}
+		return obj;
+	}
+	
+	/*
+	 * Save the indexes that have changed, removing the models that are
+	 * not in the models directory anymore. Called once all the models are listed
+	 */
+	public static synchronized void save() {
+		for (File dir : modified) {
+			HashMap<String, Entry> index = indexes.get(dir);
+			Map<String, Object> data = new LinkedHashMap<String, Object>();
+			Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Entry> entry = it.next();
+				if (!new File(dir, entry.getKey()).isFile()) {
+					it.remove();
+					continue;
+				}
+				Map<String, Object> value = new LinkedHashMap<String, Object>();
+				value.put("stamp", entry.getValue().stamp);
+				value.put("config", entry.getValue().config);
+				data.put(entry.getKey(), value);
+			}
+			File file = new File(dir, INDEX_FILE);
+			File tmp = new File(dir, INDEX_FILE + ".tmp");
+			try {
+				try (Writer writer = new FileWriter(tmp)) {
+					new Yaml().dump(data, writer);
+				}
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException | YAMLException e) {
+				// The models directory might be read only, the index is kept in memory
+				System.out.println("[DEBUG] Unable to save the models index at " + dir.getAbsolutePath() + ": " + e.getMessage());
+				tmp.delete();
+			}
+		}
+		modified.clear();
+	}
+	
+	/*
+	 * The index is saved in the directory that contains the model folders
+	 */
+	private static File getIndexDir(File yamlFile) {
+		File modelFolder = yamlFile.getParentFile();
+		if (modelFolder.getParentFile() != null)
+			return modelFolder.getParentFile();
+		return modelFolder;
+	}
+	
+	private static String getKey(File dir, File yamlFile) {
+		return dir.toPath().relativize(yamlFile.toPath()).toString().replace(File.separator, "/");
+	}
+	
+	private static HashMap<String, Entry> load(File dir) {
+		HashMap<String, Entry> index = indexes.get(dir);
+		if (index != null)
+			return index;
+		index = new HashMap<String, Entry>();
+		File file = new File(dir, INDEX_FILE);
+		if (file.isFile()) {
+			try (InputStream is = new FileInputStream(file)) {
+				Object data = new Yaml(new SafeConstructor()).load(is);
+				if (!(data instanceof Map))
+					throw new YAMLException("the index is not a map");
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) data).entrySet()) {
+					if (!(entry.getValue() instanceof Map))
+						continue;
+					Map<?, ?> value = (Map<?, ?>) entry.getValue();
+					// Entries that are not complete are parsed again from their yaml file
+					if (value.get("stamp") instanceof String && value.get("config") instanceof Map)
+						index.put(entry.getKey().toString(), new Entry((String) value.get("stamp"), (Map<?, ?>) value.get("config")));
+				}
+			} catch (IOException | YAMLException e) {
+				// An index from another version or damaged is discarded and built again
+				System.out.println("[DEBUG] Unable to read the models index " + file.getAbsolutePath());
+				index = new HashMap<String, Entry>();
+				modified.add(dir);
+			}
+		}
+		indexes.put(dir, index);
+		return index;
+	}
+	
+	/*
+	 * Copy of the contents of a yaml file. The maps and lists are copied,
+	 * the rest of values (strings, numbers, booleans) are shared
+	 */
+	private static Map<String, Object> copyConfig(Map<?, ?> config) {
+		Map<String, Object> copy = new LinkedHashMap<String, Object>();
+		for (Map.Entry<?, ?> entry : config.entrySet())
+			copy.put(String.valueOf(entry.getKey()), copyValue(entry.getValue()));
+		return copy;
+	}
+	
+	private static Object copyValue(Object value) {
+		if (value instanceof Map) {
+			Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+				copy.put(entry.getKey(), copyValue(entry.getValue()));
+			return copy;
+		} else if (value instanceof List) {
+			List<Object> copy = new ArrayList<Object>();
+			for (Object item : (List<?>) value)
+				copy.add(copyValue(item));
+			return copy;
+		}
+		return value;
+	}
+	
+	/*
+	 * Yaml file already parsed
+	 */
+	private static class Entry {
+		// Size and modification date of the yaml file when it was parsed
+		private String stamp;
+		// Contents of the yaml file
+		private Map<?, ?> config;
+		
+		private Entry(String stamp, Map<?, ?> config) {
+			this.stamp = stamp;
+			this.config = config;
+		}
+	}
+}
@@ -62,8 +62,15 @@ public class ModelLoader implements Callable<Boolean>{
 	private boolean cuda;
 	private boolean show;
 	private boolean isFiji;
+	// Whether to keep the model loaded in the ModelCache after the execution
+	private boolean cache;
 	
 	public ModelLoader(DeepImageJ dp, RunnerProgress rp, boolean gpu, boolean cuda, boolean show, boolean isFiji) {
+		this(dp, rp, gpu, cuda, show, isFiji, false);
+	}
+	
+	public ModelLoader(DeepImageJ dp, RunnerProgress rp, boolean gpu, boolean cuda, boolean show, boolean isFiji, boolean cache) {
+		this.cache = cache;
 		this.dp = dp;
 		this.rp = rp;
 		this.gpu = gpu;
@@ -74,7 +81,9 @@ public class ModelLoader implements Callable<Boolean>{
 
 	@Override
 	public Boolean call()  {
-		if (dp.params.framework.contains("tensorflow") && !(new File(dp.getPath() + File.separator + "variables").exists())) {
+		// If the model was loaded by a previous execution, reuse it
+		boolean cached = cache && ModelCache.restore(dp);
+		if (!cached && dp.params.framework.contains("tensorflow") && !(new File(dp.getPath() + File.separator + "variables").exists())) {
 			if (rp != null) {
 				rp.setUnzipping(true);
 				rp.setVisible(this.show);
@@ -82,16 +91,29 @@ public class ModelLoader implements Callable<Boolean>{
 			String fileName = dp.getPath() + File.separator + dp.tfName;
 			boolean unzipped = true;
 			try {
-				unzipped = FileTools.unzipFolder(new File(fileName), dp.getPath());
+				// The checksum is calculated while unzipping, so the zip is only read once
+				String expected = dp.params.verifyZipSha256 ? dp.params.tfSha256 : null;
+				String sha256 = FileTools.unzipVerified(new File(fileName), dp.getPath(), expected);
+				unzipped = sha256 != null;
 				// If the file was not unzipped correctly, stop and warn the user
 				if (!unzipped) {
 					IJ.error("Error unzipping the model\n"
 							+ "It seems that the zipped file is corrupted");
 					return false;
 				}
+				DigestCache.put(fileName, sha256);
+				if (expected != null && !sha256.equals(expected)) {
+					// The files extracted were not moved into the model folder
+					dp.params.incorrectSha256 = true;
+					IJ.error("The Sha256 checksum of " + dp.tfName + " does not agree\n"
+							+ "with the one in the rdf.yaml file.\n"
+							+ "The model file might have been modified after creation.");
+					return false;
+				}
+				dp.params.verifyZipSha256 = false;
 			} catch (IOException e) {
 				e.printStackTrace();
-				IJ.error("Error unzipping: " + fileName);
+				IJ.error("Error unzipping: " + fileName + "\n" + e.getMessage());
 				return false;
 			} catch (InterruptedException e) {
 		        // Interrupted execution
@@ -114,7 +136,9 @@ public class ModelLoader implements Callable<Boolean>{
 		if (rp != null)
 			rp.allowStopping(false);
 		boolean ret = false;
-		if (dp.params.framework.equals("tensorflow")) {
+		if (cached) {
+			ret = true;
+		} else if (dp.params.framework.equals("tensorflow")) {
 			ret = dp.loadTfModel(true);
 		} else if (dp.params.framework.equals("pytorch")) {
 			String ptWeightsPath = dp.getPath() + File.separatorChar + dp.ptName;
@@ -130,6 +154,8 @@ public class ModelLoader implements Callable<Boolean>{
 					+ "\nIf the problem persits, please check the DeepImageJ Wiki.");
 			return false;
 		}
+		if (cache && !cached)
+			ModelCache.put(dp);
 		if (rp != null) {
 			rp.allowStopping(true);
 			// Check if the user has tried to stop the execution while loading the model
@@ -0,0 +1,160 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej.tools;
+
+import java.awt.EventQueue;
+import java.awt.GraphicsEnvironment;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import ij.ImagePlus;
+import ij.macro.Interpreter;
+import ij.measure.ResultsTable;
+
+/*
+ * Displays the outputs of a model while its tiles are being processed, without doing
+ * any display work in the tile loop. The runner only marks the outputs that have
+ * changed, and a timer refreshes their windows in the event dispatch thread at most
+ * once every REFRESH_PERIOD milliseconds. In batch mode or headless the windows are
+ * not refreshed until the end. The tables are shown once all the tiles are processed.
+ */
+public class OutputDisplay {
+	
+	// Minimum time in milliseconds between two refreshes of the outputs
+	public static final long REFRESH_PERIOD = 250;
+	
+	private List<ImagePlus> images = new ArrayList<ImagePlus>();
+	private Set<ImagePlus> changed = new LinkedHashSet<ImagePlus>();
+	private List<ResultsTable> tables = new ArrayList<ResultsTable>();
+	private List<String> tableTitles = new ArrayList<String>();
+	private Timer timer;
+	// Whether the windows are refreshed while the tiles are processed
+	private boolean live;
+	
+	public OutputDisplay() {
+		live = !GraphicsEnvironment.isHeadless() && !Interpreter.isBatchMode();
+	}
+	
+	/*
+	 * Show a new output. In batch mode the image is only registered in ImageJ
+	 */
+	public synchronized void show(ImagePlus imp) {
+		images.add(imp);
+		imp.show();
+		if (live && timer == null) {
+			timer = new Timer("DeepImageJ output display", true);
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					refresh();
+				}
+			}, REFRESH_PERIOD, REFRESH_PERIOD);
+		}
+	}
+	
+	/*
+	 * Mark an output as changed, so it is refreshed in the next period
+	 */
+	public synchronized void changed(ImagePlus imp) {
+		if (live)
+			changed.add(imp);
+	}
+	
+	/*
+	 * Show a table once all the tiles have been processed
+	 */
+	public synchronized void showTable(ResultsTable table, String title) {
+		tables.add(table);
+		tableTitles.add(title);
+	}
+	
+	/*
+	 * Stop the timer and refresh all the outputs. Has to be called once all
+	 * the tiles have been processed, or when the execution stops
+	 */
+	public void finish() {
+		List<ImagePlus> toDraw;
+		synchronized (this) {
+			if (timer != null)
+				timer.cancel();
+			timer = null;
+			changed.clear();
+			toDraw = new ArrayList<ImagePlus>(images);
+			for (int i = 0; i < tables.size(); i ++)
+				tables.get(i).show(tableTitles.get(i));
+			tables.clear();
+			tableTitles.clear();
+		}
+		draw(toDraw);
+	}
+	
+	private void refresh() {
+		final List<ImagePlus> toDraw;
+		synchronized (this) {
+			if (changed.isEmpty())
+				return;
+			toDraw = new ArrayList<ImagePlus>(changed);
+			changed.clear();
+		}
+		EventQueue.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				draw(toDraw);
+			}
+		});
+	}
+	
+	private static void draw(List<ImagePlus> toDraw) {
+		for (ImagePlus imp : toDraw) {
+			imp.getProcessor().resetMinAndMax();
+			imp.updateAndDraw();
+		}
+	}
+}
@@ -46,6 +46,7 @@ package deepimagej.tools;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.management.ManagementFactory;
@@ -121,6 +122,25 @@ public class SystemUsage {
 		return String.format("u=%3.2f m=%3.2f i=%3.2f Mb", u, m, i);
 	}
 
+	/*
+	 * Physical memory used by the process (resident set size), in bytes. Unlike the
+	 * virtual memory, it only counts the pages that are in use, including the native
+	 * memory of the Deep Learning engines.
+	 * Returns -1 if it is not available, which is the case outside of Linux
+	 */
+	public static long getResidentMemory() {
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// The line has the format "VmRSS:     123456 kB"
+				if (line.startsWith("VmRSS:"))
+					return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+			}
+		} catch (IOException | NumberFormatException e) {
+		}
+		return -1;
+	}
+
 	public static double getLoad() {
 		try {
 			OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
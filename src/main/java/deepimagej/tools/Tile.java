@@ -0,0 +1,156 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Position of one of the tiles in which the image is divided to be
+ * processed by the model. All the coordinates are given in pixels
+ */
+public class Tile {
+	/*
+	 * Number of the tile, starting at 1
+	 */
+	public int index;
+	/*
+	 * Position of the tile in the grid of tiles for the axes X, Y and Z
+	 */
+	public int i;
+	public int j;
+	public int z;
+	/*
+	 * Frame of the image the tile belongs to, starting at 0
+	 */
+	public int t;
+	/*
+	 * Position where the tile starts in the mirrored image
+	 */
+	public int xMirrorStart;
+	public int yMirrorStart;
+	public int zMirrorStart;
+	/*
+	 * Region of the original image that the tile fills in the output
+	 */
+	public int xImageStart;
+	public int xImageEnd;
+	public int yImageStart;
+	public int yImageEnd;
+	public int zImageStart;
+	public int zImageEnd;
+	/*
+	 * Number of pixels at the beginning of the tile that are discarded
+	 * when the tile is inserted in the output
+	 */
+	public int leftoverX;
+	public int leftoverY;
+	public int leftoverZ;
+	
+	/*
+	 * Divide an image into tiles. All the arrays are organised as [x, y, c, z].
+	 * 'size' is the size of the image, 'roi' the size of the region of the tile that
+	 * is kept, 'nTiles' the number of tiles per axis, 'padding' the padding added at each
+	 * side of the image and 'overlap' the number of pixels discarded at the beginning
+	 * of each tile. The order of the tiles is the same one used to process them
+	 * sequentially: X, then Y and then Z. Each of the 'nFrames' frames of the image is
+	 * divided in the same tiles, and all the tiles of a frame come before the ones of the next
+	 */
+	public static List<Tile> createTiles(int[] size, int[] roi, int[] nTiles, int[] padding, int[] overlap, int nFrames) {
+		List<Tile> tiles = new ArrayList<Tile>();
+		int count = 0;
+		for (int t = 0; t < nFrames; t++) {
+			for (int i = 0; i < nTiles[0]; i++) {
+				for (int j = 0; j < nTiles[1]; j++) {
+					for (int z = 0; z < nTiles[3]; z++) {
+						Tile tile = new Tile();
+						tile.index = ++ count;
+						tile.i = i;
+						tile.j = j;
+						tile.z = z;
+						tile.t = t;
+						if (i < nTiles[0] -1 || nTiles[0] == 1) {
+							tile.xMirrorStart = padding[0] + roi[0]*i;
+							tile.xImageStart = roi[0]*i;
+							tile.xImageEnd = roi[0]*(i + 1);
+							tile.leftoverX = overlap[0];
+						} else {
+							tile.xMirrorStart = size[0] + padding[0] - roi[0];
+							tile.xImageStart = roi[0]*i;
+							tile.xImageEnd = size[0];
+							tile.leftoverX = overlap[0] + roi[0] - (tile.xImageEnd - tile.xImageStart);
+						}
+						
+						if (j < nTiles[1] - 1 || nTiles[1] == 1) {
+							tile.yMirrorStart = padding[1] + roi[1]*j;
+							tile.yImageStart = roi[1]*j;
+							tile.yImageEnd = roi[1]*(j + 1);
+							tile.leftoverY = overlap[1];
+						} else {
+							tile.yMirrorStart = size[1] + padding[1] - roi[1];
+							tile.yImageStart = roi[1]*j;
+							tile.yImageEnd = size[1];
+							tile.leftoverY = overlap[1] + roi[1] - (tile.yImageEnd - tile.yImageStart);
+						}
+						
+						if (z < nTiles[3] - 1 || nTiles[3] == 1) {
+							tile.zMirrorStart = padding[3] + roi[3]*z;
+							tile.zImageStart = roi[3]*z;
+							tile.zImageEnd = roi[3]*(z + 1);
+							tile.leftoverZ = overlap[3];
+						} else {
+							tile.zMirrorStart = size[3] + padding[3] - roi[3];
+							tile.zImageStart = roi[3]*z;
+							tile.zImageEnd = size[3];
+							tile.leftoverZ = overlap[3] + roi[3] - (tile.zImageEnd - tile.zImageStart);
+						}
+						tiles.add(tile);
+					}
+				}
+			}
+		}
+		return tiles;
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.ImagePlus;
+
+/*
+ * Chooses the tile size for an image from the minimum size, step and halo of the
+ * model input and from the memory available. Every tile size allowed by the model
+ * is considered, from the minimum one to the one that covers the whole image, and
+ * the one that processes the image with the fewest pixels, counting the halos and
+ * a fixed cost per tile, is chosen among the ones whose memory fits in the budget.
+ * The memory of a tile is the memory of the input and output tiles, plus an estimate
+ * of the intermediate activations of the model.
+ */
+public class TilePlanner {
+	
+	/*
+	 * The intermediate activations of a network are usually several times bigger
+	 * than its input. As the architecture is not known, they are estimated as this
+	 * number of copies of the input tile
+	 */
+	public static final int ACTIVATION_FACTOR = 16;
+	/*
+	 * Fixed cost of running a tile, in pixels. It accounts for the time spent
+	 * preparing the tensors and launching the model
+	 */
+	private static final long TILE_OVERHEAD = 64 * 64;
+	// Maximum number of sizes tried along each axis
+	private static final int MAX_CANDIDATES = 64;
+	
+	/*
+	 * Tile size chosen for an image and its estimated cost
+	 */
+	public static class Plan {
+		// Axes of the tile, without the batch
+		public String[] dims;
+		// Size of the tile along each of the axes
+		public int[] patch;
+		// Halo of the input along each of the axes
+		public float[] halo;
+		// Total number of tiles
+		public int nTiles;
+		// Estimated memory needed to run one tile, in bytes
+		public long tileBytes;
+		// Memory budget used to choose the tile
+		public long budget;
+		// Pixels processed with all the tiles, relative to the pixels of the image
+		public double cost;
+		
+		/*
+		 * Tile size in the format of the 'tile' argument of DeepImageJ Run
+		 */
+		public String getPatchString() {
+			String str = "";
+			for (int i = 0; i < patch.length; i ++)
+				str += (i == 0 ? "" : ",") + patch[i];
+			return str;
+		}
+		
+		public boolean fitsBudget() {
+			return tileBytes <= budget;
+		}
+		
+		@Override
+		public String toString() {
+			String axes = "";
+			for (String d : dims)
+				axes += d;
+			return "tile " + getPatchString() + " (" + axes + "): " + nTiles + " tiles, " + NumFormat.bytes(tileBytes) 
+					+ " per tile (budget " + NumFormat.bytes(budget) + "), " + String.format("%.2f", cost) 
+					+ " times the pixels of the image";
+		}
+	}
+	
+	/*
+	 * Memory available for the tiles. The tensors are allocated both in the Java heap
+	 * and in native memory, so the smallest of both is taken, and half of it is left for
+	 * the rest of ImageJ and for the tiles in flight
+	 */
+	public static long getMemoryBudget() {
+		Runtime rt = Runtime.getRuntime();
+		long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			available = Math.min(available, ((com.sun.management.OperatingSystemMXBean) os).getFreePhysicalMemorySize());
+		return available / 2;
+	}
+	
+	/*
+	 * Choose the tile size to process an image
+	 * @param imp: image to process
+	 * @param input: input tensor of the model
+	 * @param outputs: outputs of the model
+	 * @param halo: halo of the input along each axis, without the batch
+	 * @param budget: memory available for a tile, in bytes
+	 * @return the tile size with the lowest cost that fits in the budget, or the
+	 * 	smallest one if none of them fits
+	 */
+	public static Plan plan(ImagePlus imp, DijTensor input, List<DijTensor> outputs, float[] halo, long budget) {
+		String[] dims = DijTensor.getWorkingDims(input.form);
+		int[] min = DijTensor.getWorkingDimValues(input.form, input.minimum_size);
+		int[] step = DijTensor.getWorkingDimValues(input.form, input.step);
+		int[] imSize = new int[dims.length];
+		int[][] candidates = new int[dims.length][];
+		for (int i = 0; i < dims.length; i ++) {
+			imSize[i] = getImageSize(imp, dims[i]);
+			candidates[i] = getCandidates(imSize[i], min[i], step[i], halo[i]);
+			if (candidates[i].length == 0)
+				return null;
+		}
+		double imVoxels = 1;
+		for (int i = 0; i < dims.length; i ++)
+			imVoxels *= dims[i].equals("C") ? 1 : imSize[i];
+		
+		Plan best = null;
+		Plan smallest = null;
+		int[] ind = new int[dims.length];
+		while (true) {
+			Plan plan = new Plan();
+			plan.dims = dims;
+			plan.halo = halo;
+			plan.budget = budget;
+			plan.patch = new int[dims.length];
+			plan.nTiles = 1;
+			long inVoxels = 1;
+			for (int i = 0; i < dims.length; i ++) {
+				int size = candidates[i][ind[i]];
+				plan.patch[i] = size;
+				inVoxels *= size;
+				// The channels are never split in tiles
+				if (!dims[i].equals("C"))
+					plan.nTiles *= (int) Math.ceil(imSize[i] / (double) Math.max(1, size - 2 * (int) halo[i]));
+			}
+			plan.tileBytes = 4L * inVoxels * (1 + ACTIVATION_FACTOR) + 4L * getOutputVoxels(plan, input, outputs);
+			plan.cost = plan.nTiles * (double) (tileVoxels(plan) + TILE_OVERHEAD) / imVoxels;
+			if (plan.fitsBudget() && (best == null || plan.cost < best.cost 
+									|| (plan.cost == best.cost && plan.tileBytes < best.tileBytes)))
+				best = plan;
+			if (smallest == null || plan.tileBytes < smallest.tileBytes)
+				smallest = plan;
+			// Next combination of sizes
+			int a = 0;
+			while (a < dims.length && ++ ind[a] == candidates[a].length) {
+				ind[a] = 0;
+				a ++;
+			}
+			if (a == dims.length)
+				break;
+		}
+		return best != null ? best : smallest;
+	}
+	
+	/*
+	 * Pixels of a tile without counting the channels
+	 */
+	private static long tileVoxels(Plan plan) {
+		long voxels = 1;
+		for (int i = 0; i < plan.dims.length; i ++)
+			voxels *= plan.dims[i].equals("C") ? 1 : plan.patch[i];
+		return voxels;
+	}
+	
+	/*
+	 * Number of pixels of all the image outputs of a tile, using the scale and
+	 * offset of the outputs with respect to their reference input
+	 */
+	private static long getOutputVoxels(Plan plan, DijTensor input, List<DijTensor> outputs) {
+		long total = 0;
+		for (DijTensor out : outputs) {
+			if (!out.tensorType.contains("image"))
+				continue;
+			String[] outForm = out.form.split("");
+			double voxels = 1;
+			for (int i = 0; i < plan.dims.length; i ++) {
+				int indOut = Index.indexOf(outForm, plan.dims[i]);
+				if (indOut == -1)
+					continue;
+				if (out.scale == null)
+					voxels *= plan.patch[i];
+				else if (plan.dims[i].equals("C"))
+					voxels *= plan.patch[i] * out.scale[indOut] + 2 * out.offset[indOut];
+				else
+					voxels *= plan.patch[i] * out.scale[indOut];
+			}
+			total += (long) Math.ceil(voxels);
+		}
+		return total;
+	}
+	
+	/*
+	 * Sizes allowed by the model along one axis, from the minimum one to the first
+	 * one that covers the whole image with its halo. If there are too many, only some
+	 * of them, evenly spaced, are returned, always including the biggest one
+	 */
+	private static int[] getCandidates(int imSize, int min, int step, float halo) {
+		if (step == 0)
+			return new int[] {min};
+		int maxK = Math.max(0, (int) Math.ceil((imSize + 2 * halo - min) / (double) step));
+		int kStep = Math.max(1, (int) Math.ceil((maxK + 1) / (double) MAX_CANDIDATES));
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (int k = maxK; k >= 0; k -= kStep) {
+			int size = min + k * step;
+			// The tiles have to be bigger than their halo
+			if (size > 2 * halo)
+				sizes.add(0, size);
+		}
+		int[] arr = new int[sizes.size()];
+		for (int i = 0; i < arr.length; i ++)
+			arr[i] = sizes.get(i);
+		return arr;
+	}
+	
+	private static int getImageSize(ImagePlus imp, String dim) {
+		switch (dim) {
+			case "Y":
+				return imp.getHeight();
+			case "X":
+				return imp.getWidth();
+			case "Z":
+				return imp.getNSlices();
+			case "C":
+				return imp.getNChannels();
+			default:
+				return 1;
+		}
+	}
+}
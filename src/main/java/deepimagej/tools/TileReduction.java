@@ -0,0 +1,120 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej.tools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/*
+ * Reductions of the channels of the output tiles, applied to each tile before
+ * it is stitched, so the multichannel output of the model is never created for
+ * the whole image:
+ * - argmax: index of the channel with the highest value (starting at 0)
+ * - softmax_argmax: same as argmax. The softmax does not change the order of the
+ * 	channels, so it is not computed
+ * - threshold: 1 where the value is bigger than the threshold and 0 elsewhere, for
+ * 	each of the channels
+ */
+public class TileReduction {
+	
+	public static final String NONE = "none";
+	public static final String ARGMAX = "argmax";
+	public static final String SOFTMAX_ARGMAX = "softmax_argmax";
+	public static final String THRESHOLD = "threshold";
+	
+	/*
+	 * Check whether the name of the reduction is valid
+	 */
+	public static boolean isValidReduction(String reduction) {
+		return reduction.equals(NONE) || reduction.equals(ARGMAX) 
+				|| reduction.equals(SOFTMAX_ARGMAX) || reduction.equals(THRESHOLD);
+	}
+	
+	/*
+	 * Apply the reduction to an output tile
+	 * @param patch: output tile of the model
+	 * @param reduction: one of the reductions of this class
+	 * @param threshold: threshold used by THRESHOLD
+	 * @return a new 32-bit tile, or the same one if there is no reduction
+	 */
+	public static ImagePlus apply(ImagePlus patch, String reduction, double threshold) {
+		if (reduction == null || reduction.equals(NONE))
+			return patch;
+		int[] dims = patch.getDimensions();
+		boolean argmax = reduction.equals(ARGMAX) || reduction.equals(SOFTMAX_ARGMAX);
+		int outChannels = argmax ? 1 : dims[2];
+		ImagePlus reduced = IJ.createHyperStack(patch.getTitle(), dims[0], dims[1], outChannels, dims[3], dims[4], 32);
+		ImageStack patchStack = patch.getStack();
+		ImageStack outStack = reduced.getStack();
+		int nPixels = dims[0] * dims[1];
+		float[][] channels = new float[dims[2]][];
+		for (int t = 0; t < dims[4]; t ++) {
+			for (int z = 0; z < dims[3]; z ++) {
+				for (int c = 0; c < dims[2]; c ++)
+					channels[c] = (float[]) patchStack.getProcessor(patch.getStackIndex(c + 1, z + 1, t + 1)).convertToFloat().getPixels();
+				if (argmax) {
+					float[] labels = (float[]) outStack.getPixels(reduced.getStackIndex(1, z + 1, t + 1));
+					for (int i = 0; i < nPixels; i ++) {
+						int best = 0;
+						for (int c = 1; c < channels.length; c ++) {
+							if (channels[c][i] > channels[best][i])
+								best = c;
+						}
+						labels[i] = best;
+					}
+				} else {
+					for (int c = 0; c < dims[2]; c ++) {
+						float[] mask = (float[]) outStack.getPixels(reduced.getStackIndex(c + 1, z + 1, t + 1));
+						for (int i = 0; i < nPixels; i ++)
+							mask[i] = channels[c][i] > threshold ? 1 : 0;
+					}
+				}
+			}
+		}
+		return reduced;
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/*
+ * Writes the output tiles of a model into the output image. Without blending, only
+ * the valid center of each tile is copied, and the halo is discarded.
+ * With blending, each tile also contributes the part of its halo that falls inside
+ * the neighbouring tiles. Its pixels are weighted by a ramp that goes from 0 at the
+ * border of the tile to 1 inside, and the sums are normalized by the weights once
+ * all the tiles have been added. Like this, the transitions between tiles are smooth
+ * even with small halos.
+ * The output can also be written to disk chunk by chunk with a {@link ChunkedOutput},
+ * which does not support blending.
+ * 8-bit and 16-bit outputs are also supported without blending. Each tile is converted
+ * to integers before being written, so the output never needs a 32-bit copy.
+ */
+public class TileStitcher {
+	
+	public static final String NONE = "none";
+	public static final String LINEAR = "linear";
+	public static final String COSINE = "cosine";
+	
+	private ImagePlus image;
+	private String blending;
+	/*
+	 * Sum of the weights of every pixel of each of the slices of each frame of the output,
+	 * shared by all the channels. Null if there is no blending. The slices are allocated
+	 * when the first tile is written in them
+	 */
+	private float[][] weights;
+	// Output written to disk, null if the output is kept in memory
+	private ChunkedOutput chunks;
+	// Value written as 0 and number of levels per unit in 8-bit and 16-bit outputs
+	private double quantOffset = 0;
+	private double quantScale = 1;
+	
+	/*
+	 * @param image: output image, 32-bit and initialized to 0
+	 * @param blending: one of NONE, LINEAR or COSINE
+	 */
+	public TileStitcher(ImagePlus image, String blending) {
+		this.image = image;
+		this.blending = blending;
+		if (!blending.equals(NONE))
+			weights = new float[image.getNSlices() * image.getNFrames()][];
+	}
+	
+	/*
+	 * @param chunks: output written to disk tile by tile
+	 */
+	public TileStitcher(ChunkedOutput chunks) {
+		this.chunks = chunks;
+		this.image = chunks.getImage();
+		this.blending = NONE;
+	}
+	
+	/*
+	 * Map the values of the tiles to the range of an 8-bit or 16-bit output:
+	 * 'range[0]' is written as 0 and 'range[1]' as the maximum value. The calibration
+	 * of the output gives back the original values. Without range, the values are
+	 * only rounded, as for labels
+	 */
+	public void setRange(double[] range) {
+		if (range == null || image.getBitDepth() == 32 || range[1] <= range[0])
+			return;
+		double max = image.getBitDepth() == 8 ? 255 : 65535;
+		quantOffset = range[0];
+		quantScale = max / (range[1] - range[0]);
+		image.getCalibration().setFunction(Calibration.STRAIGHT_LINE, new double[] {quantOffset, 1 / quantScale}, "value");
+	}
+	
+	/*
+	 * Output image
+	 */
+	public ImagePlus getImage() {
+		return image;
+	}
+	
+	/*
+	 * Check whether the name of the blending method is valid
+	 */
+	public static boolean isValidBlending(String blending) {
+		return blending.equals(NONE) || blending.equals(LINEAR) || blending.equals(COSINE);
+	}
+	
+	/*
+	 * Add a tile to the output. The arguments are the same as the ones of
+	 * {@link ArrayOperations#imagePlusReconstructor(ImagePlus, ImagePlus, int, int, int, int, int, int, int, int, int)}:
+	 * the position of the valid region of the tile in the output image and the
+	 * position of that region in the tile, and the frame of the output (starting at 1).
+	 * Returns false if the tile could not be written to disk
+	 */
+	public boolean add(ImagePlus patch, int xStart, int xEnd, int yStart, int yEnd, int zStart, int zEnd,
+					int leftoverX, int leftoverY, int leftoverZ, int frame) {
+		if (chunks != null) {
+			return chunks.add(patch, xStart, xEnd, yStart, yEnd, zStart, zEnd, leftoverX, leftoverY, leftoverZ, frame);
+		} else if (weights == null && image.getBitDepth() != 32) {
+			addQuantized(patch, xStart, xEnd, yStart, yEnd, zStart, zEnd, leftoverX, leftoverY, leftoverZ, frame);
+			return true;
+		} else if (weights == null) {
+			ArrayOperations.imagePlusReconstructor(image, patch, xStart, xEnd, yStart, yEnd, zStart, zEnd,
+													leftoverX, leftoverY, leftoverZ, frame);
+			return true;
+		}
+		int[] patchDims = patch.getDimensions();
+		// Extend the valid region into the halo, without leaving the tile or the output image
+		int left = Math.max(0, Math.min(leftoverX, xStart));
+		int right = Math.max(0, Math.min(patchDims[0] - leftoverX - (xEnd - xStart), image.getWidth() - xEnd));
+		int top = Math.max(0, Math.min(leftoverY, yStart));
+		int bottom = Math.max(0, Math.min(patchDims[1] - leftoverY - (yEnd - yStart), image.getHeight() - yEnd));
+		int front = Math.max(0, Math.min(leftoverZ, zStart));
+		int back = Math.max(0, Math.min(patchDims[3] - leftoverZ - (zEnd - zStart), image.getNSlices() - zEnd));
+		int nx = xEnd - xStart + left + right;
+		int ny = yEnd - yStart + top + bottom;
+		int nz = zEnd - zStart + front + back;
+		float[] wx = getRamp(nx, left, right);
+		float[] wy = getRamp(ny, top, bottom);
+		float[] wz = getRamp(nz, front, back);
+		
+		ImageStack patchStack = patch.getStack();
+		ImageStack imStack = image.getStack();
+		int width = image.getWidth();
+		float[] row = new float[nx];
+		for (int z = 0; z < nz; z ++) {
+			int zImage = zStart - front + z;
+			int zPatch = leftoverZ - front + z;
+			int weightsIndex = (frame - 1) * image.getNSlices() + zImage;
+			if (weights[weightsIndex] == null)
+				weights[weightsIndex] = new float[image.getWidth() * image.getHeight()];
+			float[] sliceWeights = weights[weightsIndex];
+			for (int c = 0; c < patchDims[2]; c ++) {
+				int patchIndex = patch.getStackIndex(c + 1, zPatch + 1, 1);
+				Object patchPixels = patchStack.getPixels(patchIndex);
+				ImageProcessor patchIp = patchPixels instanceof int[] ? patchStack.getProcessor(patchIndex) : null;
+				float[] imPixels = (float[]) imStack.getPixels(image.getStackIndex(c + 1, zImage + 1, frame));
+				for (int y = 0; y < ny; y ++) {
+					ArrayOperations.getRowAsFloat(patchPixels, patchIp, null, patchDims[0], leftoverY - top + y, 
+													leftoverX - left, nx, row, 0);
+					int offset = (yStart - top + y) * width + xStart - left;
+					float wyz = wy[y] * wz[z];
+					for (int x = 0; x < nx; x ++) {
+						float w = wx[x] * wyz;
+						imPixels[offset + x] += w * row[x];
+						// The weights are the same for all the channels
+						if (c == 0)
+							sliceWeights[offset + x] += w;
+					}
+				}
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Write the valid region of a tile in an 8-bit or 16-bit output, converting its
+	 * values to integers row by row
+	 */
+	private void addQuantized(ImagePlus patch, int xStart, int xEnd, int yStart, int yEnd, int zStart, int zEnd,
+								int leftoverX, int leftoverY, int leftoverZ, int frame) {
+		int roiX = Math.min(xEnd - xStart, Math.min(image.getWidth() - xStart, patch.getWidth() - leftoverX));
+		int roiY = Math.min(yEnd - yStart, Math.min(image.getHeight() - yStart, patch.getHeight() - leftoverY));
+		int roiZ = zEnd - zStart;
+		if (roiX <= 0 || roiY <= 0)
+			return;
+		int max = image.getBitDepth() == 8 ? 255 : 65535;
+		ImageStack patchStack = patch.getStack();
+		ImageStack imStack = image.getStack();
+		int width = image.getWidth();
+		float[] row = new float[roiX];
+		for (int z = 0; z < roiZ; z ++) {
+			for (int c = 0; c < patch.getNChannels(); c ++) {
+				int patchIndex = patch.getStackIndex(c + 1, leftoverZ + z + 1, 1);
+				Object patchPixels = patchStack.getPixels(patchIndex);
+				ImageProcessor patchIp = patchPixels instanceof int[] ? patchStack.getProcessor(patchIndex) : null;
+				Object imPixels = imStack.getPixels(image.getStackIndex(c + 1, zStart + z + 1, frame));
+				for (int y = 0; y < roiY; y ++) {
+					ArrayOperations.getRowAsFloat(patchPixels, patchIp, null, patch.getWidth(), leftoverY + y, leftoverX, roiX, row, 0);
+					int offset = (yStart + y) * width + xStart;
+					for (int x = 0; x < roiX; x ++) {
+						int v = (int) Math.round((row[x] - quantOffset) * quantScale);
+						v = Math.max(0, Math.min(max, v));
+						if (imPixels instanceof byte[])
+							((byte[]) imPixels)[offset + x] = (byte) v;
+						else
+							((short[]) imPixels)[offset + x] = (short) v;
+					}
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Normalize the output by the sum of the weights. Has to be called once all
+	 * the tiles have been added
+	 */
+	public void finish() {
+		if (chunks != null)
+			chunks.refresh();
+		if (weights == null)
+			return;
+		ImageStack imStack = image.getStack();
+		for (int t = 0; t < image.getNFrames(); t ++) {
+			for (int z = 0; z < image.getNSlices(); z ++) {
+				float[] sliceWeights = weights[t * image.getNSlices() + z];
+				if (sliceWeights == null)
+					continue;
+				for (int c = 0; c < image.getNChannels(); c ++) {
+					float[] imPixels = (float[]) imStack.getPixels(image.getStackIndex(c + 1, z + 1, t + 1));
+					for (int i = 0; i < imPixels.length; i ++) {
+						if (sliceWeights[i] > 0)
+							imPixels[i] /= sliceWeights[i];
+					}
+				}
+			}
+		}
+		weights = null;
+		image.getProcessor().resetMinAndMax();
+		image.updateAndDraw();
+	}
+	
+	/*
+	 * Weights along one axis of a region of 'n' pixels that has been extended 'start' pixels
+	 * at the beginning and 'end' pixels at the end. The weight goes from 0 to 1 along twice
+	 * the extension, so it is complementary to the one of the neighbouring tile
+	 */
+	private float[] getRamp(int n, int start, int end) {
+		float[] ramp = new float[n];
+		for (int i = 0; i < n; i ++) {
+			float w = 1;
+			if (start > 0 && i < 2 * start)
+				w *= rampValue((i + 0.5f) / (2 * start));
+			if (end > 0 && n - 1 - i < 2 * end)
+				w *= rampValue((n - 1 - i + 0.5f) / (2 * end));
+			ramp[i] = w;
+		}
+		return ramp;
+	}
+	
+	private float rampValue(float t) {
+		if (blending.equals(COSINE))
+			return (float) (0.5 - 0.5 * Math.cos(Math.PI * t));
+		return t;
+	}
+}
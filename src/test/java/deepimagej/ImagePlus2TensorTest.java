@@ -0,0 +1,226 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package deepimagej;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import deepimagej.tools.MirroredImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/*
+ * Compares the tensors written by copying the rows of the pixel arrays
+ * ({@link ImagePlus2Tensor#region2Buffer(MirroredImage, int[][], String, int[], ByteBuffer, String)})
+ * with the values read pixel by pixel with ImagePlus.setPositionWithoutUpdate()
+ * and ImageProcessor.getPixelValue(), as the tensors were built before.
+ */
+public class ImagePlus2TensorTest {
+	
+	private static final String[] FORMS = {"BYXC", "BCYX", "BXYC", "BZYXC", "BCZYX", "BYXZC", "BYX", "YXC", "XY"};
+	private static final int WIDTH = 7;
+	private static final int HEIGHT = 5;
+	private static final int CHANNELS = 2;
+	private static final int SLICES = 3;
+	private static final int FRAMES = 2;
+	
+	@Test
+	public void test8Bit() {
+		checkForms(createImage(8, false), ImagePlus2Tensor.FLOAT32);
+	}
+	
+	@Test
+	public void test16Bit() {
+		checkForms(createImage(16, false), ImagePlus2Tensor.FLOAT32);
+	}
+	
+	@Test
+	public void test16BitCalibrated() {
+		checkForms(createImage(16, true), ImagePlus2Tensor.FLOAT32);
+	}
+	
+	@Test
+	public void test32Bit() {
+		checkForms(createImage(32, false), ImagePlus2Tensor.FLOAT32);
+	}
+	
+	/*
+	 * Regions that go beyond the borders of the image are read from the mirrored image
+	 */
+	@Test
+	public void testMirroredRegions() {
+		for (ImagePlus imp : new ImagePlus[] {createImage(32, false), createImage(16, true)}) {
+			MirroredImage mirror = new MirroredImage(imp, 3, 4, 2, 3, 1, 2);
+			int[][] origins = new int[][] {{0, 0, 0, 0}, {WIDTH - 2, 1, 1, 1}};
+			int[] patchSize = new int[] {WIDTH + 4, HEIGHT + 3, CHANNELS, SLICES + 1};
+			for (String form : FORMS)
+				checkRegions(mirror, getOrigins(form, origins), getPatchSize(form, patchSize), form, ImagePlus2Tensor.FLOAT32);
+		}
+	}
+	
+	/*
+	 * 8-bit and 16-bit images are copied into integer tensors without calibrating them
+	 */
+	@Test
+	public void testIntegerTensors() {
+		checkForms(createImage(8, false), ImagePlus2Tensor.UINT8);
+		checkForms(createImage(8, false), ImagePlus2Tensor.INT32);
+		checkForms(createImage(16, true), ImagePlus2Tensor.INT32);
+	}
+	
+	/*
+	 * Write every frame of the image, at one position of the batch dimension
+	 * each, into tensors of all the forms
+	 */
+	private static void checkForms(ImagePlus imp, String type) {
+		MirroredImage mirror = new MirroredImage(imp, 0, 0, 0, 0, 0, 0);
+		int[] size = new int[] {WIDTH, HEIGHT, CHANNELS, SLICES};
+		int[][] origins = new int[FRAMES][];
+		for (int t = 0; t < FRAMES; t ++)
+			origins[t] = new int[] {0, 0, 0, t};
+		for (String form : FORMS)
+			checkRegions(mirror, getOrigins(form, origins), getPatchSize(form, size), form, type);
+	}
+	
+	/*
+	 * Forms without batch take only the first region
+	 */
+	private static int[][] getOrigins(String form, int[][] origins) {
+		return form.indexOf("B") == -1 ? new int[][] {origins[0]} : origins;
+	}
+	
+	/*
+	 * The axes that are not in the form are taken with size 1
+	 */
+	private static int[] getPatchSize(String form, int[] size) {
+		int[] patch = size.clone();
+		if (form.indexOf("C") == -1)
+			patch[2] = 1;
+		if (form.indexOf("Z") == -1)
+			patch[3] = 1;
+		return patch;
+	}
+	
+	private static void checkRegions(MirroredImage mirror, int[][] origins, int[] patchSize, String form, String type) {
+		ImagePlus imp = mirror.image;
+		String fullForm = ImagePlus2Tensor.completeForm(form);
+		int[] tensorDims = ImagePlus2Tensor.getTensorDims(fullForm, patchSize, origins.length);
+		ByteBuffer buffer = ImagePlus2Tensor.region2Buffer(mirror, origins, fullForm, tensorDims, null, type);
+		FloatBuffer floatBuffer = buffer.asFloatBuffer();
+		Calibration cal = imp.getCalibration();
+		int[] position = new int[fullForm.length()];
+		for (int b = 0; b < origins.length; b ++) {
+			for (int c = 0; c < patchSize[2]; c ++) {
+				for (int z = 0; z < patchSize[3]; z ++) {
+					imp.setPositionWithoutUpdate(c + 1, mirror.getZ(z + origins[b][2]) + 1, origins[b][3] + 1);
+					ImageProcessor ip = imp.getProcessor();
+					ip.setCalibrationTable(cal.calibrated() ? cal.getCTable() : null);
+					for (int y = 0; y < patchSize[1]; y ++) {
+						for (int x = 0; x < patchSize[0]; x ++) {
+							int xImage = mirror.getX(x + origins[b][0]);
+							int yImage = mirror.getY(y + origins[b][1]);
+							position[fullForm.indexOf("B")] = b;
+							position[fullForm.indexOf("C")] = c;
+							position[fullForm.indexOf("Z")] = z;
+							position[fullForm.indexOf("Y")] = y;
+							position[fullForm.indexOf("X")] = x;
+							int index = getIndex(position, tensorDims);
+							String where = form + " " + type + " " + imp.getBitDepth() + "-bit, b=" + b 
+											+ " c=" + c + " z=" + z + " y=" + y + " x=" + x;
+							if (type.equals(ImagePlus2Tensor.UINT8))
+								assertEquals(where, ip.getPixel(xImage, yImage), buffer.get(index) & 0xff);
+							else if (type.equals(ImagePlus2Tensor.INT32))
+								assertEquals(where, ip.getPixel(xImage, yImage), buffer.getInt(index * 4));
+							else
+								assertEquals(where, ip.getPixelValue(xImage, yImage), floatBuffer.get(index), 0);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Position in a row major array of the element at 'position'
+	 */
+	private static int getIndex(int[] position, int[] dims) {
+		int index = 0;
+		for (int i = 0; i < dims.length; i ++)
+			index = index * dims[i] + position[i];
+		return index;
+	}
+	
+	/*
+	 * Hyperstack filled with random values that use the whole range of the data type
+	 */
+	private static ImagePlus createImage(int bitDepth, boolean calibrated) {
+		ImagePlus imp = IJ.createHyperStack("test", WIDTH, HEIGHT, CHANNELS, SLICES, FRAMES, bitDepth);
+		ImageStack stack = imp.getStack();
+		Random random = new Random(bitDepth);
+		for (int s = 1; s <= stack.getSize(); s ++) {
+			Object pixels = stack.getPixels(s);
+			for (int i = 0; i < WIDTH * HEIGHT; i ++) {
+				if (pixels instanceof byte[])
+					((byte[]) pixels)[i] = (byte) random.nextInt(256);
+				else if (pixels instanceof short[])
+					((short[]) pixels)[i] = (short) random.nextInt(65536);
+				else
+					((float[]) pixels)[i] = (float) (random.nextGaussian() * 1000);
+			}
+		}
+		if (calibrated)
+			imp.getCalibration().setFunction(Calibration.STRAIGHT_LINE, new double[] {-32768, 0.5}, "gray value");
+		return imp;
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/*
+ * Compares the index tables of the {@link MirroredImage} with the coordinates
+ * reflected one step at a time, as CompactMirroring did when it copied the
+ * extended image, and the extended image with the pixels read one by one with
+ * ImageProcessor.getPixelValue()
+ */
+public class MirroredImageTest {
+	
+	/*
+	 * Paddings smaller and bigger than the image, which are reflected several times
+	 */
+	@Test
+	public void testIndexTables() {
+		for (int n = 1; n <= 6; n ++) {
+			for (int before = 0; before <= 3 * n; before ++) {
+				for (int after = 0; after <= 3 * n; after += 2) {
+					ImagePlus imp = IJ.createHyperStack("test", n, n, 1, n, 1, 8);
+					MirroredImage mirror = new MirroredImage(imp, before, after, after, before, before, after);
+					checkTable("x, n=" + n, mirror.xIndex, n, before, after);
+					checkTable("y, n=" + n, mirror.yIndex, n, after, before);
+					checkTable("z, n=" + n, mirror.zIndex, n, before, after);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Coordinates outside of the extended image are reflected in the same way
+	 */
+	@Test
+	public void testOutsideTables() {
+		for (int n = 1; n <= 6; n ++) {
+			ImagePlus imp = IJ.createHyperStack("test", n, n + 1, 1, n + 2, 1, 8);
+			MirroredImage mirror = new MirroredImage(imp, 2, 1, 1, 2, 3, 0);
+			for (int a = -4 * n; a < 5 * n; a ++) {
+				assertEquals("x=" + a + ", n=" + n, mirror(a - 2, n), mirror.getX(a));
+				assertEquals("y=" + a + ", n=" + n, mirror(a - 1, n + 1), mirror.getY(a));
+				assertEquals("z=" + a + ", n=" + n, mirror(a - 3, n + 2), mirror.getZ(a));
+			}
+		}
+	}
+	
+	/*
+	 * The columns reported as contiguous are consecutive columns of the original
+	 * image, and the ones inside of the image are always reported as contiguous
+	 */
+	@Test
+	public void testContiguousX() {
+		ImagePlus imp = IJ.createHyperStack("test", 7, 3, 1, 1, 1, 8);
+		MirroredImage mirror = new MirroredImage(imp, 4, 5, 0, 0, 0, 0);
+		for (int x = 0; x < mirror.getWidth(); x ++) {
+			for (int length = 1; x + length <= mirror.getWidth(); length ++) {
+				boolean consecutive = true;
+				for (int i = 1; i < length; i ++)
+					consecutive = consecutive && mirror.xIndex[x + i] == mirror.xIndex[x] + i;
+				String where = "x=" + x + " length=" + length;
+				if (mirror.isContiguousX(x, length))
+					assertTrue(where, consecutive);
+				if (x >= 4 && x + length <= 4 + 7)
+					assertTrue(where, mirror.isContiguousX(x, length));
+			}
+		}
+	}
+	
+	/*
+	 * The extended image copied by CompactMirroring has the values of the original
+	 * image at the reflected positions, for all the channels, slices and frames
+	 */
+	@Test
+	public void testMirroredPixels() {
+		for (int bitDepth : new int[] {8, 16, 32}) {
+			ImagePlus imp = createImage(bitDepth, 6, 5, 2, 4, 2);
+			if (bitDepth == 16)
+				imp.getCalibration().setFunction(Calibration.STRAIGHT_LINE, new double[] {-100, 0.25}, "gray value");
+			int[] padding = new int[] {3, 7, 4, 2, 2, 5};
+			ImagePlus out = CompactMirroring.mirrorXY(imp, padding[0], padding[1], padding[2], padding[3], padding[4], padding[5]);
+			int[] dims = out.getDimensions();
+			assertEquals("width", 6 + padding[0] + padding[1], dims[0]);
+			assertEquals("height", 5 + padding[2] + padding[3], dims[1]);
+			assertEquals("slices", 4 + padding[4] + padding[5], dims[3]);
+			Calibration cal = imp.getCalibration();
+			ImageStack outStack = out.getStack();
+			for (int t = 0; t < dims[4]; t ++) {
+				for (int z = 0; z < dims[3]; z ++) {
+					for (int c = 0; c < dims[2]; c ++) {
+						imp.setPositionWithoutUpdate(c + 1, mirror(z - padding[4], 4) + 1, t + 1);
+						ImageProcessor ip = imp.getProcessor();
+						ip.setCalibrationTable(cal.calibrated() ? cal.getCTable() : null);
+						float[] pixels = (float[]) outStack.getPixels(out.getStackIndex(c + 1, z + 1, t + 1));
+						for (int y = 0; y < dims[1]; y ++) {
+							for (int x = 0; x < dims[0]; x ++) {
+								float expected = ip.getPixelValue(mirror(x - padding[0], 6), mirror(y - padding[2], 5));
+								assertEquals(bitDepth + "-bit, x=" + x + " y=" + y + " c=" + c + " z=" + z + " t=" + t, 
+												expected, pixels[y * dims[0] + x], 0);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	private static void checkTable(String axis, int[] table, int n, int before, int after) {
+		assertEquals(axis + ", size", n + before + after, table.length);
+		for (int i = 0; i < table.length; i ++)
+			assertEquals(axis + ", " + i, mirror(i - before, n), table[i]);
+	}
+	
+	/*
+	 * Reflect the coordinate into [0, n) one period at a time, without repeating
+	 * the border pixel
+	 */
+	private static int mirror(int a, int n) {
+		if (n == 1)
+			return 0;
+		int period = 2 * n - 2;
+		while (a < 0)
+			a += period;
+		while (a >= n) {
+			a = period - a;
+			a = (a < 0 ? -a : a);
+		}
+		return a;
+	}
+	
+	/*
+	 * Hyperstack filled with random values
+	 */
+	private static ImagePlus createImage(int bitDepth, int width, int height, int channels, int slices, int frames) {
+		ImagePlus imp = IJ.createHyperStack("test", width, height, channels, slices, frames, bitDepth);
+		ImageStack stack = imp.getStack();
+		Random random = new Random(bitDepth);
+		for (int s = 1; s <= stack.getSize(); s ++) {
+			Object pixels = stack.getPixels(s);
+			for (int i = 0; i < width * height; i ++) {
+				if (pixels instanceof byte[])
+					((byte[]) pixels)[i] = (byte) random.nextInt(256);
+				else if (pixels instanceof short[])
+					((short[]) pixels)[i] = (short) random.nextInt(65536);
+				else
+					((float[]) pixels)[i] = (float) random.nextGaussian();
+			}
+		}
+		return imp;
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/*
+ * Compares the reductions of {@link TileReduction} with the ones computed pixel
+ * by pixel from the values read with ImageProcessor.getPixelValue(), and checks
+ * that reducing each tile before stitching gives the same output as reducing
+ * the stitched image
+ */
+public class TileReductionTest {
+	
+	private static final int WIDTH = 9;
+	private static final int HEIGHT = 7;
+	private static final int CHANNELS = 4;
+	private static final int SLICES = 3;
+	private static final int FRAMES = 2;
+	
+	@Test
+	public void testNone() {
+		ImagePlus imp = createImage(32, false, 1);
+		assertTrue("none", TileReduction.apply(imp, TileReduction.NONE, 0) == imp);
+		assertTrue("null", TileReduction.apply(imp, null, 0) == imp);
+	}
+	
+	/*
+	 * Values with many ties, which are resolved with the first channel
+	 */
+	@Test
+	public void testArgmax() {
+		for (int bitDepth : new int[] {8, 32}) {
+			ImagePlus imp = createImage(bitDepth, true, 2);
+			checkArgmax(imp, TileReduction.apply(imp, TileReduction.ARGMAX, 0), false);
+		}
+	}
+	
+	/*
+	 * The labels are the ones of the channel with the highest probability after
+	 * computing the softmax
+	 */
+	@Test
+	public void testSoftmaxArgmax() {
+		ImagePlus imp = createImage(32, false, 3);
+		checkArgmax(imp, TileReduction.apply(imp, TileReduction.SOFTMAX_ARGMAX, 0), true);
+	}
+	
+	/*
+	 * Values equal to the threshold are set to 0
+	 */
+	@Test
+	public void testThreshold() {
+		for (int bitDepth : new int[] {8, 32}) {
+			ImagePlus imp = createImage(bitDepth, true, 4);
+			double threshold = bitDepth == 8 ? 2 : 0.5;
+			ImagePlus out = TileReduction.apply(imp, TileReduction.THRESHOLD, threshold);
+			assertEquals("bit depth", 32, out.getBitDepth());
+			assertEquals("channels", CHANNELS, out.getNChannels());
+			for (int t = 0; t < FRAMES; t ++) {
+				for (int z = 0; z < SLICES; z ++) {
+					for (int c = 0; c < CHANNELS; c ++) {
+						ImageProcessor ip = getProcessor(imp, c, z, t);
+						float[] mask = (float[]) out.getStack().getPixels(out.getStackIndex(c + 1, z + 1, t + 1));
+						for (int y = 0; y < HEIGHT; y ++) {
+							for (int x = 0; x < WIDTH; x ++) {
+								float expected = ip.getPixelValue(x, y) > threshold ? 1 : 0;
+								assertEquals(bitDepth + "-bit, x=" + x + " y=" + y + " c=" + c + " z=" + z + " t=" + t,
+												expected, mask[y * WIDTH + x], 0);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/*
+	 * The reductions work pixel by pixel, so reducing the tiles and stitching them
+	 * gives the same output as reducing the whole image
+	 */
+	@Test
+	public void testReduceTiles() {
+		ImagePlus imp = createImage(32, false, 5);
+		int[] size = new int[] {WIDTH, HEIGHT, CHANNELS, SLICES};
+		int[] roi = new int[] {4, 3, CHANNELS, 2};
+		int[] halo = new int[] {2, 1, 0, 1};
+		int[] nTiles = new int[] {3, 3, 1, 2};
+		MirroredImage mirror = new MirroredImage(imp, halo[0], halo[0], halo[1], halo[1], halo[3], halo[3]);
+		List<Tile> tiles = Tile.createTiles(size, roi, nTiles, halo, halo, FRAMES);
+		for (String reduction : new String[] {TileReduction.ARGMAX, TileReduction.THRESHOLD}) {
+			ImagePlus whole = TileReduction.apply(imp, reduction, 0.25);
+			int[] dims = whole.getDimensions();
+			ImagePlus out = IJ.createHyperStack("output", dims[0], dims[1], dims[2], dims[3], dims[4], 32);
+			TileStitcher stitcher = new TileStitcher(out, TileStitcher.NONE);
+			for (Tile tile : tiles) {
+				ImagePlus patch = readTile(mirror, tile, roi, halo);
+				stitcher.add(TileReduction.apply(patch, reduction, 0.25), tile.xImageStart, tile.xImageEnd, tile.yImageStart, 
+							tile.yImageEnd, tile.zImageStart, tile.zImageEnd, tile.leftoverX, tile.leftoverY, tile.leftoverZ, tile.t + 1);
+			}
+			stitcher.finish();
+			for (int s = 1; s <= whole.getStack().getSize(); s ++) {
+				float[] expected = (float[]) whole.getStack().getPixels(s);
+				float[] actual = (float[]) out.getStack().getPixels(s);
+				for (int i = 0; i < expected.length; i ++)
+					assertEquals(reduction + ", slice " + s + ", pixel " + i, expected[i], actual[i], 0);
+			}
+		}
+	}
+	
+	private static void checkArgmax(ImagePlus imp, ImagePlus out, boolean softmax) {
+		assertEquals("bit depth", 32, out.getBitDepth());
+		assertEquals("channels", 1, out.getNChannels());
+		for (int t = 0; t < FRAMES; t ++) {
+			for (int z = 0; z < SLICES; z ++) {
+				float[] labels = (float[]) out.getStack().getPixels(out.getStackIndex(1, z + 1, t + 1));
+				for (int y = 0; y < HEIGHT; y ++) {
+					for (int x = 0; x < WIDTH; x ++) {
+						double[] values = new double[CHANNELS];
+						double sum = 0;
+						for (int c = 0; c < CHANNELS; c ++) {
+							values[c] = getProcessor(imp, c, z, t).getPixelValue(x, y);
+							if (softmax) {
+								values[c] = Math.exp(values[c]);
+								sum += values[c];
+							}
+						}
+						int best = 0;
+						for (int c = 0; c < CHANNELS; c ++) {
+							if (softmax)
+								values[c] /= sum;
+							if (values[c] > values[best])
+								best = c;
+						}
+						assertEquals("x=" + x + " y=" + y + " z=" + z + " t=" + t, best, labels[y * WIDTH + x], 0);
+					}
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Read a tile with its halo from the mirrored image
+	 */
+	private static ImagePlus readTile(MirroredImage mirror, Tile tile, int[] roi, int[] halo) {
+		ImagePlus imp = mirror.image;
+		int px = roi[0] + 2 * halo[0];
+		int py = roi[1] + 2 * halo[1];
+		int pz = roi[3] + 2 * halo[3];
+		ImagePlus patch = IJ.createHyperStack("tile", px, py, CHANNELS, pz, 1, 32);
+		for (int z = 0; z < pz; z ++) {
+			for (int c = 0; c < CHANNELS; c ++) {
+				ImageProcessor ip = getProcessor(imp, c, mirror.getZ(tile.zMirrorStart - halo[3] + z), tile.t);
+				float[] pixels = (float[]) patch.getStack().getPixels(patch.getStackIndex(c + 1, z + 1, 1));
+				for (int y = 0; y < py; y ++) {
+					for (int x = 0; x < px; x ++)
+						pixels[y * px + x] = ip.getPixelValue(mirror.getX(tile.xMirrorStart - halo[0] + x), 
+																mirror.getY(tile.yMirrorStart - halo[1] + y));
+				}
+			}
+		}
+		return patch;
+	}
+	
+	private static ImageProcessor getProcessor(ImagePlus imp, int c, int z, int t) {
+		imp.setPositionWithoutUpdate(c + 1, z + 1, t + 1);
+		return imp.getProcessor();
+	}
+	
+	/*
+	 * Hyperstack filled with random values. With 'ties', the values are
+	 * small integers, so several channels often have the same one
+	 */
+	private static ImagePlus createImage(int bitDepth, boolean ties, long seed) {
+		ImagePlus imp = IJ.createHyperStack("test", WIDTH, HEIGHT, CHANNELS, SLICES, FRAMES, bitDepth);
+		ImageStack stack = imp.getStack();
+		Random random = new Random(seed);
+		for (int s = 1; s <= stack.getSize(); s ++) {
+			Object pixels = stack.getPixels(s);
+			for (int i = 0; i < WIDTH * HEIGHT; i ++) {
+				if (pixels instanceof byte[])
+					((byte[]) pixels)[i] = (byte) (ties ? random.nextInt(4) : random.nextInt(256));
+				else
+					((float[]) pixels)[i] = ties ? random.nextInt(3) / 2f : (float) random.nextGaussian();
+			}
+		}
+		return imp;
+	}
+}
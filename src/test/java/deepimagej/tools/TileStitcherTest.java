@@ -0,0 +1,297 @@
+/*
+ * DeepImageJ
+ * 
+ * https://deepimagej.github.io/deepimagej/
+ * 
+ * Reference: DeepImageJ: A user-friendly environment to run deep learning models in ImageJ
+ * E. Gomez-de-Mariscal, C. Garcia-Lopez-de-Haro, W. Ouyang, L. Donati, M. Unser, E. Lundberg, A. Munoz-Barrutia, D. Sage. 
+ * Submitted 2021.
+ * Bioengineering and Aerospace Engineering Department, Universidad Carlos III de Madrid, Spain
+ * Biomedical Imaging Group, Ecole polytechnique federale de Lausanne (EPFL), Switzerland
+ * Science for Life Laboratory, School of Engineering Sciences in Chemistry, Biotechnology and Health, KTH - Royal Institute of Technology, Sweden
+ * 
+ * Authors: Carlos Garcia-Lopez-de-Haro and Estibaliz Gomez-de-Mariscal
+ *
+ */
+
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2019-2021, DeepImageJ
+ * All rights reserved.
+ *	
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *	  this list of conditions and the following disclaimer in the documentation
+ *	  and/or other materials provided with the distribution.
+ *	
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package deepimagej.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/*
+ * Stitches the tiles of an image the same way the runners do, with a model that
+ * returns its input plus a constant for each tile, and compares the output with
+ * values computed pixel by pixel: without blending each pixel comes from the tile
+ * whose valid region contains it, and with blending the values across a seam
+ * follow the ramp of the two neighbouring tiles.
+ */
+public class TileStitcherTest {
+	
+	private static final String[] BLENDINGS = {TileStitcher.NONE, TileStitcher.LINEAR, TileStitcher.COSINE};
+	
+	/*
+	 * With a model that does not change its input, the output is the input image
+	 * for every blending, also when the last tiles are cut by the border
+	 */
+	@Test
+	public void testIdentity() {
+		ImagePlus imp = createImage(23, 17, 2, 5, 2, 1);
+		for (String blending : BLENDINGS) {
+			ImagePlus out = stitch(imp, new int[] {8, 6, 2, 2}, new int[] {3, 2, 0, 1}, blending, false);
+			double tolerance = blending.equals(TileStitcher.NONE) ? 0 : 1e-3;
+			checkEquals(blending, imp, out, tolerance);
+		}
+	}
+	
+	/*
+	 * Without blending, each pixel is the one of the tile whose valid region contains it
+	 */
+	@Test
+	public void testNoBlending() {
+		ImagePlus imp = createImage(23, 17, 2, 5, 2, 2);
+		int[] roi = new int[] {8, 6, 2, 2};
+		ImagePlus out = stitch(imp, roi, new int[] {3, 2, 0, 1}, TileStitcher.NONE, true);
+		int[] nTiles = new int[] {3, 3, 1, 3};
+		ImageStack inStack = imp.getStack();
+		ImageStack outStack = out.getStack();
+		for (int t = 0; t < 2; t ++) {
+			for (int z = 0; z < 5; z ++) {
+				for (int c = 0; c < 2; c ++) {
+					float[] in = (float[]) inStack.getPixels(imp.getStackIndex(c + 1, z + 1, t + 1));
+					float[] res = (float[]) outStack.getPixels(out.getStackIndex(c + 1, z + 1, t + 1));
+					for (int y = 0; y < 17; y ++) {
+						for (int x = 0; x < 23; x ++) {
+							// Tiles are numbered from 1, X first, then Y, then Z and then the frame
+							int index = 1 + t * nTiles[0] * nTiles[1] * nTiles[3] + (x / roi[0]) * nTiles[1] * nTiles[3]
+										+ (y / roi[1]) * nTiles[3] + z / roi[3];
+							assertEquals("x=" + x + " y=" + y + " z=" + z, in[y * 23 + x] + index, res[y * 23 + x], 0);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Two tiles of constant values side by side. Across the seam, the weight of
+	 * the second tile goes from 0 to 1 along twice the halo, measured at the center
+	 * of the pixels, and the one of the first tile is its complement
+	 */
+	@Test
+	public void testBlendingSeam() {
+		int roi = 10;
+		int halo = 3;
+		ImagePlus imp = IJ.createHyperStack("zeros", 2 * roi, 4, 1, 1, 1, 32);
+		for (String blending : new String[] {TileStitcher.LINEAR, TileStitcher.COSINE}) {
+			ImagePlus out = stitch(imp, new int[] {roi, 4, 1, 1}, new int[] {halo, 0, 0, 0}, blending, true);
+			float[] res = (float[]) out.getStack().getPixels(1);
+			for (int y = 0; y < 4; y ++) {
+				for (int x = 0; x < 2 * roi; x ++) {
+					double w = 0;
+					if (x >= roi + halo)
+						w = 1;
+					else if (x >= roi - halo)
+						w = (x - (roi - halo) + 0.5) / (2 * halo);
+					if (blending.equals(TileStitcher.COSINE))
+						w = 0.5 - 0.5 * Math.cos(Math.PI * w);
+					// The first tile is filled with 1 and the second one with 2
+					assertEquals(blending + " x=" + x, 1 * (1 - w) + 2 * w, res[y * 2 * roi + x], 1e-5);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Blended pixels are an average of the tiles that cover them, so they
+	 * stay between the values of those tiles. Far from the seams they are the
+	 * values of their own tile
+	 */
+	@Test
+	public void testBlendingRange() {
+		ImagePlus imp = createImage(23, 17, 1, 5, 1, 3);
+		int[] roi = new int[] {8, 6, 1, 2};
+		int[] halo = new int[] {3, 2, 0, 1};
+		ImagePlus out = stitch(imp, roi, halo, TileStitcher.LINEAR, true);
+		List<Tile> tiles = createTiles(imp, roi, halo);
+		ImageStack inStack = imp.getStack();
+		ImageStack outStack = out.getStack();
+		for (int z = 0; z < 5; z ++) {
+			float[] in = (float[]) inStack.getPixels(z + 1);
+			float[] res = (float[]) outStack.getPixels(z + 1);
+			for (int y = 0; y < 17; y ++) {
+				for (int x = 0; x < 23; x ++) {
+					// Tiles whose input contains the pixel
+					int min = Integer.MAX_VALUE;
+					int max = Integer.MIN_VALUE;
+					boolean inner = true;
+					for (Tile tile : tiles) {
+						int x0 = tile.xImageStart - tile.leftoverX;
+						int y0 = tile.yImageStart - tile.leftoverY;
+						int z0 = tile.zImageStart - tile.leftoverZ;
+						if (x < x0 || x >= x0 + roi[0] + 2 * halo[0] || y < y0 || y >= y0 + roi[1] + 2 * halo[1]
+								|| z < z0 || z >= z0 + roi[3] + 2 * halo[3])
+							continue;
+						min = Math.min(min, tile.index);
+						max = Math.max(max, tile.index);
+						inner = inner && x >= tile.xImageStart && x < tile.xImageEnd && y >= tile.yImageStart
+								&& y < tile.yImageEnd && z >= tile.zImageStart && z < tile.zImageEnd;
+					}
+					String where = "x=" + x + " y=" + y + " z=" + z;
+					float value = res[y * 23 + x] - in[y * 23 + x];
+					if (inner)
+						assertEquals(where, min, value, 1e-3);
+					assertTrue(where, value >= min - 1e-3 && value <= max + 1e-3);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * 8-bit and 16-bit outputs are the values of the tiles mapped to the range
+	 * given, rounded and clipped, or only rounded without range
+	 */
+	@Test
+	public void testQuantized() {
+		ImagePlus imp = createImage(23, 17, 2, 5, 1, 4);
+		for (int bitDepth : new int[] {8, 16}) {
+			for (double[] range : new double[][] {{-3, 3}, null}) {
+				ImagePlus out = IJ.createHyperStack("output", 23, 17, 2, 5, 1, bitDepth);
+				TileStitcher stitcher = new TileStitcher(out, TileStitcher.NONE);
+				stitcher.setRange(range);
+				addTiles(stitcher, imp, new int[] {8, 6, 2, 2}, new int[] {3, 2, 0, 1}, false);
+				stitcher.finish();
+				int maxValue = bitDepth == 8 ? 255 : 65535;
+				for (int s = 1; s <= out.getStack().getSize(); s ++) {
+					float[] in = (float[]) imp.getStack().getPixels(s);
+					Object res = out.getStack().getPixels(s);
+					for (int i = 0; i < in.length; i ++) {
+						double expected = range == null ? in[i] : (in[i] - range[0]) * maxValue / (range[1] - range[0]);
+						expected = Math.max(0, Math.min(maxValue, Math.round(expected)));
+						int value = res instanceof byte[] ? ((byte[]) res)[i] & 0xff : ((short[]) res)[i] & 0xffff;
+						assertEquals(bitDepth + "-bit, slice " + s + ", pixel " + i, expected, value, 0);
+					}
+				}
+			}
+		}
+	}
+	
+	private static void checkEquals(String message, ImagePlus expected, ImagePlus actual, double tolerance) {
+		for (int s = 1; s <= expected.getStack().getSize(); s ++) {
+			float[] a = (float[]) expected.getStack().getPixels(s);
+			float[] b = (float[]) actual.getStack().getPixels(s);
+			for (int i = 0; i < a.length; i ++)
+				assertEquals(message + ", slice " + s + ", pixel " + i, a[i], b[i], tolerance);
+		}
+	}
+	
+	/*
+	 * Divide the image in tiles, run them through the model and stitch them
+	 * into a new 32-bit image
+	 */
+	private static ImagePlus stitch(ImagePlus imp, int[] roi, int[] halo, String blending, boolean addIndex) {
+		int[] dims = imp.getDimensions();
+		ImagePlus out = IJ.createHyperStack("output", dims[0], dims[1], dims[2], dims[3], dims[4], 32);
+		TileStitcher stitcher = new TileStitcher(out, blending);
+		addTiles(stitcher, imp, roi, halo, addIndex);
+		stitcher.finish();
+		return out;
+	}
+	
+	/*
+	 * Read each tile from the mirrored image. The model returns the tile read from the
+	 * mirrored image, plus the number of the tile if 'addIndex' is true
+	 */
+	private static void addTiles(TileStitcher stitcher, ImagePlus imp, int[] roi, int[] halo, boolean addIndex) {
+		int[] dims = imp.getDimensions();
+		MirroredImage mirror = new MirroredImage(imp, halo[0], halo[0], halo[1], halo[1], halo[3], halo[3]);
+		List<Tile> tiles = createTiles(imp, roi, halo);
+		int px = roi[0] + 2 * halo[0];
+		int py = roi[1] + 2 * halo[1];
+		int pz = roi[3] + 2 * halo[3];
+		ImageStack stack = imp.getStack();
+		for (Tile tile : tiles) {
+			ImagePlus patch = IJ.createHyperStack("tile", px, py, dims[2], pz, 1, 32);
+			for (int z = 0; z < pz; z ++) {
+				int zImage = mirror.getZ(tile.zMirrorStart - halo[3] + z);
+				for (int c = 0; c < dims[2]; c ++) {
+					float[] in = (float[]) stack.getPixels(imp.getStackIndex(c + 1, zImage + 1, tile.t + 1));
+					float[] pixels = (float[]) patch.getStack().getPixels(patch.getStackIndex(c + 1, z + 1, 1));
+					for (int y = 0; y < py; y ++) {
+						int yImage = mirror.getY(tile.yMirrorStart - halo[1] + y);
+						for (int x = 0; x < px; x ++) {
+							int xImage = mirror.getX(tile.xMirrorStart - halo[0] + x);
+							pixels[y * px + x] = in[yImage * dims[0] + xImage] + (addIndex ? tile.index : 0);
+						}
+					}
+				}
+			}
+			stitcher.add(patch, tile.xImageStart, tile.xImageEnd, tile.yImageStart, tile.yImageEnd,
+						tile.zImageStart, tile.zImageEnd, tile.leftoverX, tile.leftoverY, tile.leftoverZ, tile.t + 1);
+		}
+	}
+	
+	/*
+	 * Divide the image in tiles as RunnerTf does. The tiles are smaller than
+	 * the image, so the image is extended by the halo at each side
+	 */
+	private static List<Tile> createTiles(ImagePlus imp, int[] roi, int[] halo) {
+		int[] dims = imp.getDimensions();
+		int[] size = new int[] {dims[0], dims[1], dims[2], dims[3]};
+		int[] nTiles = new int[4];
+		for (int i = 0; i < 4; i ++)
+			nTiles[i] = (int) Math.ceil((double) size[i] / roi[i]);
+		return Tile.createTiles(size, roi, nTiles, halo, halo, dims[4]);
+	}
+	
+	/*
+	 * 32-bit hyperstack filled with random values
+	 */
+	private static ImagePlus createImage(int width, int height, int channels, int slices, int frames, long seed) {
+		ImagePlus imp = IJ.createHyperStack("test", width, height, channels, slices, frames, 32);
+		Random random = new Random(seed);
+		for (int s = 1; s <= imp.getStack().getSize(); s ++) {
+			float[] pixels = (float[]) imp.getStack().getPixels(s);
+			for (int i = 0; i < pixels.length; i ++)
+				pixels[i] = (float) random.nextGaussian();
+		}
+		return imp;
+	}
+}